@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs the benchmarks.
+ * <p>
+ * Given a file listing benchmarks, runs each in a JVM of its own, so one
+ * benchmark's store and JIT profile can't skew the next, and writes a table
+ * of the results. Given a single benchmark, runs it in this JVM.
+ * <p>
+ * A benchmark is the simple name of a {@link Benchmark} class followed by
+ * name=value parameters. Every benchmark takes "threads", "warmup" and
+ * "iterations" counts, and "time", the length of an iteration in
+ * milliseconds.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Bench {
+
+    private static final String FORMAT = "%-22s %-42s %14.1f %12.1f %12.2f";
+    private static final String HEADER = String.format("%-22s %-42s %14s %12s %12s", "Benchmark", "Parameters",
+        "ops/s", "stddev", "us/op");
+    private static final String RESULT = "RESULT ";
+    private static final AtomicLong SINK = new AtomicLong();
+
+    private static volatile boolean stop;
+
+    private Bench() {
+
+        // Not for instantiating
+    }
+
+    /**
+     * @param args a file of benchmarks and, optionally, a file for the
+     *            results; or a benchmark and its parameters
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+
+        if (args.length == 0) {
+            System.out.println("Usage: Bench benchmarks.txt [results.txt]");
+            System.out.println("       Bench <benchmark> [name=value...]");
+            System.exit(0);
+        }
+        if (new File(args[0]).isFile()) {
+            runAll(args[0], args.length > 1 ? args[1] : null);
+        } else {
+            runOne(args);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs every thread's op until told to stop.
+     *
+     * @param ops
+     * @param time
+     * @return the total rate, in ops per second
+     * @throws InterruptedException
+     */
+    private static double iterate(final Benchmark.Op[] ops, final long time) throws InterruptedException {
+
+        final CountDownLatch ready = new CountDownLatch(ops.length);
+        final CountDownLatch go = new CountDownLatch(1);
+        final double[] rates = new double[ops.length];
+        final Thread[] threads = new Thread[ops.length];
+        stop = false;
+        for (int i = 0; i < ops.length; i++) {
+            final int n = i;
+            threads[i] = new Thread("Bench-" + i) {
+
+                public void run() {
+
+                    ready.countDown();
+                    long count = 0;
+                    long sink = 0;
+                    try {
+                        go.await();
+                        final long start = System.nanoTime();
+                        while (!stop) {
+                            sink += ops[n].run();
+                            count++;
+                        }
+                        rates[n] = count * 1e9 / (System.nanoTime() - start);
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                    }
+                    SINK.addAndGet(sink);
+                }
+            };
+            threads[i].start();
+        }
+        ready.await();
+        go.countDown();
+        Thread.sleep(time);
+        stop = true;
+        double total = 0;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            total += rates[i];
+        }
+        return total;
+    }
+
+    private static void runAll(final String list, final String results) throws IOException, InterruptedException {
+
+        final List<String> lines = new ArrayList<String>();
+        lines.add("# " + new Date() + ", Java " + System.getProperty("java.version") + ", "
+            + System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", "
+            + Runtime.getRuntime().availableProcessors() + " processors");
+        lines.add(HEADER);
+        System.out.println(lines.get(0));
+        System.out.println(HEADER);
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final BufferedReader reader = new BufferedReader(new FileReader(list));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                final List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp",
+                    System.getProperty("java.class.path"), Bench.class.getName()));
+                command.addAll(Arrays.asList(line.split("\\s+")));
+                final Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+                String result = null;
+                final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                String out;
+                while ((out = output.readLine()) != null) {
+                    if (out.startsWith(RESULT)) {
+                        result = out.substring(RESULT.length());
+                    }
+                }
+                if (process.waitFor() != 0 || result == null) {
+                    result = String.format("%-22s %-42s %14s", line.split("\\s+")[0], "", "FAILED");
+                }
+                lines.add(result);
+                System.out.println(result);
+            }
+        } finally {
+            reader.close();
+        }
+        if (results != null) {
+            final PrintWriter writer = new PrintWriter(new FileWriter(results));
+            try {
+                for (final String line : lines) {
+                    writer.println(line);
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private static void runOne(final String[] args) throws Exception {
+
+        final Properties params = new Properties();
+        final StringBuilder shown = new StringBuilder();
+        for (int i = 1; i < args.length; i++) {
+            final int equals = args[i].indexOf('=');
+            if (equals < 1) {
+                throw new IllegalArgumentException("Not name=value: " + args[i]);
+            }
+            params.setProperty(args[i].substring(0, equals), args[i].substring(equals + 1));
+            shown.append(i > 1 ? " " : "").append(args[i]);
+        }
+        final Benchmark benchmark = (Benchmark) Class.forName(Bench.class.getPackage().getName() + "." + args[0])
+            .getDeclaredConstructor().newInstance();
+        benchmark.setParams(params);
+        final int threads = benchmark.getInt("threads", 1);
+        final int warmup = benchmark.getInt("warmup", 3);
+        final int iterations = benchmark.getInt("iterations", 5);
+        final long time = benchmark.getInt("time", 1000);
+
+        benchmark.setUp();
+        final Benchmark.Op[] ops = new Benchmark.Op[threads];
+        for (int i = 0; i < threads; i++) {
+            ops[i] = benchmark.newOp();
+        }
+        for (int i = 0; i < warmup; i++) {
+            System.err.println(String.format("%s warmup %d: %.1f ops/s", args[0], i + 1, iterate(ops, time)));
+            benchmark.endIteration();
+        }
+        final double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = iterate(ops, time);
+            System.err.println(String.format("%s iteration %d: %.1f ops/s", args[0], i + 1, scores[i]));
+            benchmark.endIteration();
+        }
+        benchmark.tearDown();
+
+        double mean = 0;
+        for (final double score : scores) {
+            mean += score / iterations;
+        }
+        double variance = 0;
+        for (final double score : scores) {
+            variance += (score - mean) * (score - mean) / Math.max(1, iterations - 1);
+        }
+        final String result = String.format(FORMAT, args[0], shown, mean, Math.sqrt(variance),
+            threads * 1e6 / mean);
+        System.out.println(RESULT + result);
+    }
+}
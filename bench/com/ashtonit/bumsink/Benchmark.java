@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.EOL;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A benchmark run by {@link Bench}. It is set up once, then each thread gets
+ * an {@link Op} of its own and runs it over and over for every iteration.
+ * Anything that needs to happen between iterations, but mustn't be timed,
+ * goes in {@link #endIteration()}.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+abstract class Benchmark {
+
+    static final String[] RECIPIENTS = { "alice@example.com", "bob@example.com" };
+    static final String SENDER = "sender@example.com";
+
+    private static final String BODY = "The quick brown fox jumps over the lazy dog. The quick brown fox jumps over";
+    private static final int ID_DIGITS = 12;
+    private static final String MESSAGE_ID = "Message-ID: <";
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private Properties params;
+
+    /**
+     * Called after every iteration, warmup or not, with no op running.
+     *
+     * @throws Exception
+     */
+    void endIteration() throws Exception {
+
+        // Nothing by default
+    }
+
+    /**
+     * @param name
+     * @param value used if the parameter wasn't given
+     * @return the parameter as a number
+     */
+    int getInt(final String name, final int value) {
+
+        return Integer.parseInt(getString(name, Integer.toString(value)));
+    }
+
+    /**
+     * @param name
+     * @param value used if the parameter wasn't given
+     * @return the parameter
+     */
+    String getString(final String name, final String value) {
+
+        return params.getProperty(name, value);
+    }
+
+    /**
+     * @return a new op for one thread to run
+     * @throws Exception
+     */
+    abstract Op newOp() throws Exception;
+
+    /**
+     * Opens the store, in a directory of its own that is emptied first. The
+     * "dir", "storage", "durability" and "cache" parameters override the
+     * usual properties.
+     *
+     * @return the store, with nothing in it
+     * @throws Exception
+     */
+    Store openStore() throws Exception {
+
+        final File directory = new File(getString("dir", "bench-mail"));
+        delete(directory);
+        directory.mkdirs();
+        Main.MAIL_DIR = directory.getPath();
+        Main.STORAGE = getString("storage", Main.STORAGE);
+        Main.DURABILITY = getString("durability", Main.DURABILITY);
+        Main.CACHE_SIZE = Long.parseLong(getString("cache", Long.toString(Main.CACHE_SIZE)));
+        final Store store = Store.getInstance();
+        store.awaitRecovery();
+        return store;
+    }
+
+    final void setParams(final Properties params) {
+
+        this.params = params;
+    }
+
+    /**
+     * Called once, before any op is made.
+     *
+     * @throws Exception
+     */
+    void setUp() throws Exception {
+
+        // Nothing by default
+    }
+
+    /**
+     * Called once, after the last iteration.
+     *
+     * @throws Exception
+     */
+    void tearDown() throws Exception {
+
+        // Nothing by default
+    }
+
+    /**
+     * Removes every email from the store.
+     *
+     * @param store
+     */
+    static void clear(final Store store) {
+
+        final Snapshot snapshot = store.snapshot(null);
+        final List<Message> messages = new ArrayList<Message>(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            messages.add(snapshot.getMessage(i));
+        }
+        store.remove(messages);
+    }
+
+    /**
+     * Saves emails straight to the store, without waiting for any of them
+     * to reach the disk, then waits for the store to catch up.
+     *
+     * @param store
+     * @param count
+     * @param size
+     * @throws IOException
+     */
+    static void fill(final Store store, final int count, final int size) throws IOException {
+
+        final String durability = Main.DURABILITY;
+        Main.DURABILITY = Main.DURABILITY_NONE;
+        try {
+            final byte[] message = message(size);
+            for (int i = 0; i < count; i++) {
+                save(store, message);
+            }
+            while (store.getQueueLength() > 0) {
+                Thread.sleep(10);
+            }
+        } catch (final InterruptedException e) {
+            // Don't care
+        } finally {
+            Main.DURABILITY = durability;
+        }
+    }
+
+    /**
+     * Frames a line, as a session would be given it.
+     *
+     * @param text without a line terminator
+     * @return the line
+     */
+    static Line line(final String text) {
+
+        final byte[] bytes = (text + EOL).getBytes();
+        final Line line = new Line();
+        line.frame(bytes, 0, bytes.length);
+        return line;
+    }
+
+    /**
+     * Makes an email of about the given size, as it arrives with BDAT:
+     * headers, a blank line and lines of text, all CRLF terminated. The
+     * Message-ID comes first, so {@link #stamp(byte[])} can find it.
+     *
+     * @param size
+     * @return the email
+     */
+    static byte[] message(final int size) {
+
+        final StringBuilder message = new StringBuilder(size + BODY.length() * 2);
+        message.append(MESSAGE_ID);
+        for (int i = 0; i < ID_DIGITS; i++) {
+            message.append('0');
+        }
+        message.append("@bench.example.com>").append(EOL);
+        message.append("From: <").append(SENDER).append('>').append(EOL);
+        message.append("To: <").append(RECIPIENTS[0]).append(">, <").append(RECIPIENTS[1]).append('>').append(EOL);
+        message.append("Subject: Benchmark").append(EOL);
+        message.append(EOL);
+        while (message.length() < size) {
+            message.append(BODY).append(EOL);
+        }
+        return message.toString().getBytes();
+    }
+
+    /**
+     * Saves an email straight to the store.
+     *
+     * @param store
+     * @param message
+     * @throws IOException
+     */
+    static void save(final Store store, final byte[] message) throws IOException {
+
+        stamp(message);
+        final Spool spool = store.newSpool();
+        spool.append(message, 0, message.length);
+        spool.setEnvelope(new Envelope(SENDER, RECIPIENTS, spool.readSubject()));
+        store.save(spool);
+    }
+
+    /**
+     * Gives an email made by {@link #message(int)} a Message-ID of its own.
+     * Real emails all differ, and the file store slows down if they don't,
+     * as it has to look further for a free name for each copy.
+     *
+     * @param message
+     */
+    static void stamp(final byte[] message) {
+
+        long id = NEXT_ID.incrementAndGet();
+        for (int i = MESSAGE_ID.length() + ID_DIGITS - 1; i >= MESSAGE_ID.length(); i--) {
+            message[i] = (byte) ('0' + id % 10);
+            id /= 10;
+        }
+    }
+
+    private static void delete(final File file) {
+
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+
+    /**
+     * One thread's share of a benchmark.
+     */
+    abstract static class Op {
+
+        /**
+         * Does the thing being measured, once.
+         *
+         * @return anything that depends on the work done, so it can't be
+         *         optimised away
+         * @throws Exception
+         */
+        abstract long run() throws Exception;
+    }
+}
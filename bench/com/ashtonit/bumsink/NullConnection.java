@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+
+
+/**
+ * A connection with no client on the other end, so a benchmark measures a
+ * session and not the network. Everything sent is read, as a socket would,
+ * then thrown away.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class NullConnection implements Connection {
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+    private final byte[] bytes = new byte[8192];
+    private boolean closed = false;
+    private long sent = 0;
+
+    private final Writer writer = new Writer() {
+
+        public void close() {
+
+            // Nothing to close
+        }
+
+        public void flush() {
+
+            // Nothing to flush
+        }
+
+        public void write(final char[] chars, final int offset, final int length) {
+
+            sent += length;
+        }
+
+        public void write(final String text, final int offset, final int length) {
+
+            sent += length;
+        }
+    };
+
+    /**
+     * @see Connection#close()
+     */
+    public void close() {
+
+        closed = true;
+    }
+
+    /**
+     * @return the number of bytes and characters sent so far
+     */
+    long getSent() {
+
+        return sent;
+    }
+
+    /**
+     * @see Connection#getWriter()
+     */
+    public Writer getWriter() {
+
+        return writer;
+    }
+
+    boolean isClosed() {
+
+        return closed;
+    }
+
+    /**
+     * @see Connection#readRaw(long)
+     */
+    public void readRaw(final long count) {
+
+        // Benchmarks only send lines
+    }
+
+    /**
+     * Runs the task on the calling thread, as {@link #suspend()} always
+     * refuses.
+     *
+     * @see Connection#resume(Callable)
+     */
+    public void resume(final Callable<Void> task) {
+
+        try {
+            task.call();
+        } catch (final Exception e) {
+            close();
+        }
+    }
+
+    /**
+     * @see Connection#send(ByteBuffer)
+     */
+    public void send(final ByteBuffer buffer) {
+
+        sent += buffer.remaining();
+    }
+
+    /**
+     * @see Connection#send(InputStream, long)
+     */
+    public void send(final InputStream stream, final long count) throws IOException {
+
+        try {
+            long remaining = count;
+            int n;
+            while (remaining > 0 && (n = stream.read(bytes, 0, (int) Math.min(remaining, bytes.length))) > 0) {
+                remaining -= n;
+                sent += n;
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @see Connection#send(FileChannel, long, long)
+     */
+    public void send(final FileChannel file, final long position, final long count) throws IOException {
+
+        try {
+            long offset = position;
+            final long end = position + count;
+            while (offset < end) {
+                buffer.clear();
+                if (end - offset < buffer.capacity()) {
+                    buffer.limit((int) (end - offset));
+                }
+                final int n = file.read(buffer, offset);
+                if (n < 0) {
+                    break;
+                }
+                offset += n;
+                sent += n;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Sessions block, as they would on a connection with a thread of its
+     * own.
+     *
+     * @see Connection#suspend()
+     */
+    public boolean suspend() {
+
+        return false;
+    }
+}
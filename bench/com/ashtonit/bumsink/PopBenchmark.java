@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+
+/**
+ * A POP3 session on a store of "messages" emails of "size" bytes, sending
+ * "command" over and over: STAT, LIST or UIDL for the whole mailbox, or RETR
+ * for each message in turn, up to the first thousand.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class PopBenchmark extends Benchmark {
+
+    private static final int RETR_LIMIT = 1000;
+
+    /**
+     * @see Benchmark#newOp()
+     */
+    @Override
+    Op newOp() throws Exception {
+
+        final NullConnection connection = new NullConnection();
+        final PopSession session = new PopSession(connection);
+        session.open();
+        session.read(line("USER bench"));
+        session.read(line("PASS bench"));
+        final String command = getString("command", "STAT").toUpperCase();
+        final Line[] lines;
+        if ("RETR".equals(command)) {
+            lines = new Line[Math.min(getInt("messages", 10000), RETR_LIMIT)];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = line(command + " " + (i + 1));
+            }
+        } else {
+            lines = new Line[] { line(command) };
+        }
+        return new Op() {
+
+            private int next = 0;
+
+            long run() throws Exception {
+
+                session.read(lines[next]);
+                next = (next + 1) % lines.length;
+                return connection.getSent();
+            }
+        };
+    }
+
+    /**
+     * @see Benchmark#setUp()
+     */
+    @Override
+    void setUp() throws Exception {
+
+        fill(openStore(), getInt("messages", 10000), getInt("size", 1024));
+    }
+}
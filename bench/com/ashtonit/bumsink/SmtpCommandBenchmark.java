@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+
+/**
+ * An SMTP session handling envelope commands: MAIL FROM, two RCPT TOs and
+ * RSET. Nothing is saved, so this is the cost of parsing and replying.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class SmtpCommandBenchmark extends Benchmark {
+
+    /**
+     * @see Benchmark#newOp()
+     */
+    @Override
+    Op newOp() throws Exception {
+
+        final NullConnection connection = new NullConnection();
+        final SmtpSession session = new SmtpSession(connection);
+        session.open();
+        session.read(line("EHLO bench.example.com"));
+        final Line[] lines = { line("MAIL FROM:<" + SENDER + ">"), line("RCPT TO:<" + RECIPIENTS[0] + ">"),
+            line("RCPT TO:<" + RECIPIENTS[1] + ">"), line("RSET") };
+        return new Op() {
+
+            long run() throws Exception {
+
+                for (final Line line : lines) {
+                    session.read(line);
+                }
+                return connection.getSent();
+            }
+        };
+    }
+
+    /**
+     * @see Benchmark#setUp()
+     */
+    @Override
+    void setUp() throws Exception {
+
+        openStore();
+    }
+}
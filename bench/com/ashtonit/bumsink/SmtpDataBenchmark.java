@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.EOL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * An SMTP session receiving a whole email with DATA, "size" bytes of it,
+ * and saving it to the store.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class SmtpDataBenchmark extends Benchmark {
+
+    private Store store;
+
+    /**
+     * Empties the store, so it doesn't fill the disk.
+     *
+     * @see Benchmark#endIteration()
+     */
+    @Override
+    void endIteration() {
+
+        clear(store);
+    }
+
+    /**
+     * @see Benchmark#newOp()
+     */
+    @Override
+    Op newOp() throws Exception {
+
+        final NullConnection connection = new NullConnection();
+        final SmtpSession session = new SmtpSession(connection);
+        session.open();
+        session.read(line("EHLO bench.example.com"));
+        final List<Line> lines = new ArrayList<Line>();
+        lines.add(line("MAIL FROM:<" + SENDER + ">"));
+        lines.add(line("RCPT TO:<" + RECIPIENTS[0] + ">"));
+        lines.add(line("RCPT TO:<" + RECIPIENTS[1] + ">"));
+        lines.add(line("DATA"));
+        // The Message-ID line, changed for every email
+        final int id = lines.size();
+        final byte[] message = message(getInt("size", 1024));
+        for (final String text : new String(message).split(EOL, -1)) {
+            lines.add(line(text));
+        }
+        // The message ends with a line terminator, so the last "line" is
+        // empty; replace it with the end of data.
+        lines.set(lines.size() - 1, line("."));
+        return new Op() {
+
+            long run() throws Exception {
+
+                stamp(message);
+                lines.set(id, line(new String(message, 0, lines.get(id).length())));
+                for (final Line line : lines) {
+                    session.read(line);
+                }
+                return connection.getSent();
+            }
+        };
+    }
+
+    /**
+     * @see Benchmark#setUp()
+     */
+    @Override
+    void setUp() throws Exception {
+
+        store = openStore();
+    }
+}
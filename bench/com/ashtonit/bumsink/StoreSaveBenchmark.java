@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+
+/**
+ * Saves emails of "size" bytes straight to the store, on "threads" threads
+ * at once, as SMTP sessions would once they have spooled them.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class StoreSaveBenchmark extends Benchmark {
+
+    private Store store;
+
+    /**
+     * Empties the store, so it doesn't fill the disk.
+     *
+     * @see Benchmark#endIteration()
+     */
+    @Override
+    void endIteration() {
+
+        clear(store);
+    }
+
+    /**
+     * @see Benchmark#newOp()
+     */
+    @Override
+    Op newOp() {
+
+        final byte[] message = message(getInt("size", 1024));
+        return new Op() {
+
+            long run() throws Exception {
+
+                save(store, message);
+                return message.length;
+            }
+        };
+    }
+
+    /**
+     * @see Benchmark#setUp()
+     */
+    @Override
+    void setUp() throws Exception {
+
+        store = openStore();
+    }
+}
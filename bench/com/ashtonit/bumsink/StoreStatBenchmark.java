@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+
+/**
+ * Opens a mailbox on a store of "messages" emails and adds up its size, as
+ * a POP3 session does for PASS and STAT, then closes it again.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class StoreStatBenchmark extends Benchmark {
+
+    private Store store;
+
+    /**
+     * @see Benchmark#newOp()
+     */
+    @Override
+    Op newOp() {
+
+        return new Op() {
+
+            long run() {
+
+                final Mailbox mailbox = store.open(null);
+                final long octets = mailbox.getCount() + mailbox.getOctets();
+                store.quit(mailbox);
+                return octets;
+            }
+        };
+    }
+
+    /**
+     * @see Benchmark#setUp()
+     */
+    @Override
+    void setUp() throws Exception {
+
+        store = openStore();
+        fill(store, getInt("messages", 10000), getInt("size", 1024));
+    }
+}
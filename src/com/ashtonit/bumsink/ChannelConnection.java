@@ -0,0 +1,445 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+
+
+/**
+ * A non-blocking connection driven by an {@link EventLoop}. Output is
+ * queued and drained whenever the channel will take it. While anything is
+ * queued the connection doesn't read any more from the channel, so a slow
+ * client can't make us buffer without limit, but the session is still
+ * handed the rest of what has already been read.
+ * <p>
+ * While the session is suspended, waiting for an email to be saved, the
+ * connection neither reads from the channel nor hands the session anything,
+ * and carries on where it left off when the session resumes.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class ChannelConnection implements Connection {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private boolean closing = false;
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private final SelectionKey key;
+    private final Line line = new Line();
+    private final EventLoop loop;
+    private final LinkedList<Pending> out = new LinkedList<Pending>();
+    private long raw = 0;
+    private Session session;
+    private boolean suspended = false;
+    private final Writer writer;
+
+    /**
+     * @param key
+     * @param loop the loop the channel is registered with
+     */
+    ChannelConnection(final SelectionKey key, final EventLoop loop) {
+
+        this.key = key;
+        this.loop = loop;
+        channel = (SocketChannel) key.channel();
+        writer = new OutputStreamWriter(new Output());
+    }
+
+    /**
+     * @see Connection#close()
+     */
+    public void close() throws IOException {
+
+        closing = true;
+        if (out.isEmpty()) {
+            abort();
+        }
+    }
+
+    /**
+     * @see Connection#getWriter()
+     */
+    public Writer getWriter() {
+
+        return writer;
+    }
+
+    /**
+     * Closes the channel now, discarding anything not yet sent.
+     */
+    void abort() {
+
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        closing = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // Don't care
+        }
+        while (!out.isEmpty()) {
+            out.removeFirst().discard();
+        }
+    }
+
+    void open(final Session session) throws IOException {
+
+        this.session = session;
+        session.open();
+    }
+
+    /**
+     * Called when the channel is readable.
+     *
+     * @throws IOException
+     */
+    void read() throws IOException {
+
+        in.clear();
+        if (channel.read(in) < 0) {
+            abort();
+            return;
+        }
+        in.flip();
+        process();
+    }
+
+    /**
+     * @see Connection#readRaw(long)
+     */
+    public void readRaw(final long count) {
+
+        raw = count;
+    }
+
+    /**
+     * Posts the task to the loop, which runs it and then carries on with
+     * whatever is left of the last read. If the connection has closed in
+     * the meantime, the task is dropped.
+     *
+     * @see Connection#resume(Callable)
+     */
+    public void resume(final Callable<Void> task) {
+
+        loop.execute(new Runnable() {
+
+            public void run() {
+
+                if (session == null) {
+                    return;
+                }
+                suspended = false;
+                try {
+                    task.call();
+                    process();
+                } catch (final Exception e) {
+                    abort();
+                }
+            }
+        });
+    }
+
+    /**
+     * @see Connection#send(ByteBuffer)
+     */
+    public void send(final ByteBuffer buffer) throws IOException {
+
+        writer.flush();
+        out.addLast(new Bytes(buffer));
+        flush();
+    }
+
+    /**
+     * @see Connection#send(InputStream, long)
+     */
+    public void send(final InputStream stream, final long count) throws IOException {
+
+        writer.flush();
+        out.addLast(new Stream(stream, count));
+        flush();
+    }
+
+    /**
+     * @see Connection#send(FileChannel, long, long)
+     */
+    public void send(final FileChannel file, final long position, final long count) throws IOException {
+
+        writer.flush();
+        out.addLast(new Region(file, position, count));
+        flush();
+    }
+
+    /**
+     * Stops reading from the channel, and stops handing the session what is
+     * left of the last read, until {@link #resume(Callable)}.
+     *
+     * @see Connection#suspend()
+     */
+    public boolean suspend() {
+
+        suspended = true;
+        return true;
+    }
+
+    /**
+     * Called when the channel is writable.
+     *
+     * @throws IOException
+     */
+    void write() throws IOException {
+
+        flush();
+    }
+
+    private void flush() throws IOException {
+
+        while (!out.isEmpty()) {
+            if (!out.getFirst().send()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            out.removeFirst();
+        }
+        if (closing) {
+            abort();
+        } else {
+            key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Hands the session what is left of the last read, until it runs out or
+     * the session suspends or closes the connection, then sends whatever
+     * the session has written.
+     *
+     * @throws IOException
+     */
+    private void process() throws IOException {
+
+        final byte[] buffer = in.array();
+        final int limit = in.limit();
+        int offset = in.position();
+        while (offset < limit && !closing && !suspended) {
+            if (raw > 0) {
+                offset = line.skipLf(buffer, offset, limit);
+                final int count = (int) Math.min(raw, limit - offset);
+                if (count > 0) {
+                    raw -= count;
+                    session.readRaw(buffer, offset, count);
+                    offset += count;
+                }
+            } else {
+                offset = line.frame(buffer, offset, limit);
+                if (line.isComplete()) {
+                    session.read(line);
+                    line.reset();
+                }
+            }
+        }
+        in.position(offset);
+        // Everything the client has sent so far is answered at once, so a
+        // pipelined group of commands costs a single write.
+        if (session != null) {
+            writer.flush();
+        }
+    }
+
+
+    /**
+     * Queues whatever the writer encodes and sends it on flush.
+     */
+    private class Output extends OutputStream {
+
+        @Override
+        public void flush() throws IOException {
+
+            ChannelConnection.this.flush();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+
+            if (len > 0) {
+                final byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                out.addLast(new Bytes(ByteBuffer.wrap(copy)));
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+    }
+
+
+    /**
+     * Something queued for the client.
+     */
+    private abstract static class Pending {
+
+        /**
+         * Discards whatever hasn't been sent.
+         */
+        void discard() {
+
+            // Nothing to do
+        }
+
+        /**
+         * Sends as much as the channel will take.
+         *
+         * @return true once everything has been sent
+         * @throws IOException
+         */
+        abstract boolean send() throws IOException;
+    }
+
+
+    /**
+     * Bytes from the writer, or a buffer sent as is.
+     */
+    private class Bytes extends Pending {
+
+        private final ByteBuffer buffer;
+
+        Bytes(final ByteBuffer buffer) {
+
+            this.buffer = buffer;
+        }
+
+        @Override
+        boolean send() throws IOException {
+
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+    }
+
+
+    /**
+     * Part of a file, sent with {@link FileChannel#transferTo(long, long,
+     * java.nio.channels.WritableByteChannel)}.
+     */
+    private class Region extends Pending {
+
+        private final long end;
+        private final FileChannel file;
+        private long position;
+
+        Region(final FileChannel file, final long position, final long count) {
+
+            this.file = file;
+            this.position = position;
+            end = position + count;
+        }
+
+        @Override
+        void discard() {
+
+            try {
+                file.close();
+            } catch (final IOException e) {
+                // Don't care
+            }
+        }
+
+        @Override
+        boolean send() throws IOException {
+
+            while (position < end) {
+                final long n = file.transferTo(position, end - position, channel);
+                if (n <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File is shorter than expected");
+                    }
+                    return false;
+                }
+                position += n;
+            }
+            file.close();
+            return true;
+        }
+    }
+
+
+    /**
+     * Part of a stream, read a buffer at a time as the channel takes it.
+     */
+    private class Stream extends Pending {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long remaining;
+        private final InputStream stream;
+
+        Stream(final InputStream stream, final long count) {
+
+            this.stream = stream;
+            remaining = count;
+            buffer.limit(0);
+        }
+
+        @Override
+        void discard() {
+
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                // Don't care
+            }
+        }
+
+        @Override
+        boolean send() throws IOException {
+
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    if (remaining == 0) {
+                        stream.close();
+                        return true;
+                    }
+                    final int n = stream.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), remaining));
+                    if (n < 0) {
+                        throw new IOException("Message is shorter than expected");
+                    }
+                    buffer.position(0);
+                    buffer.limit(n);
+                    remaining -= n;
+                }
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.RUNNING;
+import static com.ashtonit.bumsink.Main.SNAPSHOT_INTERVAL;
+
+import java.io.IOException;
+
+
+/**
+ * Checkpoints the {@link Store} every {@link Main#SNAPSHOT_INTERVAL}
+ * milliseconds, so a crash costs no more than that much rescanning.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Checkpointer extends Thread {
+
+    private final Store store;
+
+    /**
+     * @param threadGroup
+     * @param store
+     */
+    Checkpointer(final ThreadGroup threadGroup, final Store store) {
+
+        super(threadGroup, "Checkpointer");
+        this.store = store;
+        setDaemon(true);
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        while (RUNNING) {
+            try {
+                sleep(SNAPSHOT_INTERVAL);
+                store.checkpoint();
+            } catch (final InterruptedException e) {
+                // Don't care
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.COMPACT_INTERVAL;
+import static com.ashtonit.bumsink.Main.RUNNING;
+
+import java.io.IOException;
+
+
+/**
+ * Wakes up every {@link Main#COMPACT_INTERVAL} milliseconds and has the
+ * {@link SegmentStorage} reclaim the space taken up by deleted emails.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Compactor extends Thread {
+
+    private final SegmentStorage storage;
+
+    /**
+     * @param threadGroup
+     * @param storage
+     */
+    Compactor(final ThreadGroup threadGroup, final SegmentStorage storage) {
+
+        super(threadGroup, "Compactor");
+        this.storage = storage;
+        setDaemon(true);
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        while (RUNNING) {
+            try {
+                sleep(COMPACT_INTERVAL);
+                storage.compact();
+            } catch (final InterruptedException e) {
+                // Don't care
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
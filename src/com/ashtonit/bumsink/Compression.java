@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.COMPRESSION_LEVEL;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Compressed email files. The name ends in {@link #SUFFIX}, and the file
+ * starts with a header holding the size of the email and of its headers as
+ * they go on the wire, followed by the email deflated at
+ * {@link Main#COMPRESSION_LEVEL}.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Compression {
+
+    static final String SUFFIX = ".z";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAGIC = 0x89424d5a;
+
+    private Compression() {
+
+        // Not for instantiating
+    }
+
+    /**
+     * @param file
+     * @return true if the file holds a compressed email
+     */
+    static boolean isCompressed(final File file) {
+
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    /**
+     * Opens a compressed email for reading.
+     *
+     * @param file
+     * @return the email as it goes on the wire
+     * @throws IOException
+     */
+    static InputStream open(final File file) throws IOException {
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+            BUFFER_SIZE));
+        try {
+            readHeader(in, file);
+        } catch (final IOException e) {
+            in.close();
+            throw e;
+        }
+        // Ends its own inflater when closed
+        return new InflaterInputStream(in);
+    }
+
+    /**
+     * Reads the header of a compressed email.
+     *
+     * @param file
+     * @return the size of the email and the size of its headers
+     * @throws IOException
+     */
+    static long[] readHeader(final File file) throws IOException {
+
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return readHeader(in, file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a compressed email.
+     *
+     * @param in the email as it goes on the wire
+     * @param length the size of the email
+     * @param header the size of its headers
+     * @param file
+     * @throws IOException
+     */
+    static void write(final InputStream in, final long length, final long header, final File file)
+        throws IOException {
+
+        final Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        final FileOutputStream stream = new FileOutputStream(file);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeLong(length);
+            out.writeLong(header);
+            final OutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                deflated.write(buffer, 0, n);
+            }
+            deflated.close();
+        } finally {
+            deflater.end();
+            stream.close();
+        }
+    }
+
+    private static long[] readHeader(final DataInputStream in, final File file) throws IOException {
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a compressed email: " + file.getAbsolutePath());
+        }
+        return new long[] { in.readLong(), in.readLong() };
+    }
+}
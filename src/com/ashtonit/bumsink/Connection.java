@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+
+
+/**
+ * The client end of a {@link Session}, whichever engine is driving it.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+interface Connection {
+
+    /**
+     * Closes the connection once everything already written has been sent.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+    /**
+     * @return the writer for replies to the client
+     */
+    Writer getWriter();
+
+    /**
+     * Passes the next bytes from the client to {@link Session#readRaw(byte[],
+     * int, int)} as they are, rather than as lines. Lines resume once that
+     * many have been read.
+     *
+     * @param count
+     */
+    void readRaw(long count);
+
+    /**
+     * Runs a task on the thread that runs the session, then goes back to
+     * handing the session whatever the client sends, starting with anything
+     * that arrived while it was suspended. May be called from any thread. A
+     * connection whose {@link #suspend()} refuses just runs the task on the
+     * calling thread. If the task fails the connection is closed.
+     *
+     * @param task
+     */
+    void resume(Callable<Void> task);
+
+    /**
+     * Sends the remaining bytes of a buffer as is, after anything already
+     * written. The connection may hold on to the buffer until it has been
+     * sent, so its contents mustn't change.
+     *
+     * @param buffer
+     * @throws IOException
+     */
+    void send(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Sends the next bytes of a stream as is, after anything already
+     * written, reading no further ahead than the client is taking them. The
+     * connection takes ownership of the stream and closes it once they have
+     * been sent.
+     *
+     * @param stream
+     * @param count
+     * @throws IOException
+     */
+    void send(InputStream stream, long count) throws IOException;
+
+    /**
+     * Sends part of a file to the client as is, after anything already
+     * written, without copying it through the heap. The connection takes
+     * ownership of the file and closes it once it has been sent.
+     *
+     * @param file
+     * @param position
+     * @param count
+     * @throws IOException
+     */
+    void send(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Stops handing the session anything from the client until
+     * {@link #resume(Callable)}, so it can wait for something, like an email
+     * being written, without blocking a thread that other connections share.
+     *
+     * @return false if the connection has a thread of its own, and the
+     *         session should simply block instead
+     */
+    boolean suspend();
+}
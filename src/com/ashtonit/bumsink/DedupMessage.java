@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * One delivery of an email saved by {@link DedupStorage}. The file it reads
+ * from may be shared with other deliveries of the same email.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class DedupMessage extends FileMessage {
+
+    private final long arrival;
+    private final long id;
+    private final String key;
+    private final DedupStorage storage;
+
+    /**
+     * @param storage
+     * @param id
+     * @param key the digest of the email, in hex
+     * @param file
+     * @param length
+     * @param arrival
+     */
+    DedupMessage(final DedupStorage storage, final long id, final String key, final File file, final long length,
+        final long arrival) {
+
+        super(file, length);
+        this.storage = storage;
+        this.id = id;
+        this.key = key;
+        this.arrival = arrival;
+    }
+
+    long getArrival() {
+
+        return arrival;
+    }
+
+    long getId() {
+
+        return id;
+    }
+
+    String getKey() {
+
+        return key;
+    }
+
+    /**
+     * Records that the delivery is gone. The file goes with the last
+     * delivery of the email.
+     *
+     * @see Message#purge()
+     */
+    @Override
+    void purge() {
+
+        try {
+            storage.release(this);
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
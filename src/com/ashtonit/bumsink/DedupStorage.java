@@ -0,0 +1,478 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.COMPACT_THRESHOLD;
+import static com.ashtonit.bumsink.Main.COMPRESSION;
+import static com.ashtonit.bumsink.Main.err;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Keeps each distinct email once, however many times it is delivered. An
+ * email is stored in a file named after its SHA-256 digest, under
+ * "objects" in a subdirectory named after the first two hex digits. Every
+ * delivery is a record in a journal holding its own id, which is its UID,
+ * its arrival time, header size and length, the digest of the email and its
+ * {@link Envelope}, so the same email sent to different people is still
+ * stored once. Deliveries journaled before envelopes were kept have none,
+ * and are still read. Deleting a delivery appends a tombstone holding its
+ * id; the email's file is deleted along with its last delivery. With
+ * {@link Main#COMPRESSION} on, new emails are compressed.
+ * <p>
+ * A checkpoint rewrites the journal without the deleted deliveries once
+ * they make up {@link Main#COMPACT_THRESHOLD} percent of it.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class DedupStorage implements Storage {
+
+    static final String ALGORITHM = "SHA-256";
+
+    private static final byte DELIVERY = 'D';
+    private static final int DELIVERY_SIZE = 65;
+    private static final int DIGEST_SIZE = 32;
+    private static final byte ENVELOPED = 'E';
+    private static final int ENVELOPED_HEADER = 69;
+    private static final HexFormat HEX = HexFormat.of();
+    private static final String JOURNAL = "journal";
+    private static final int JOURNAL_HEADER = 12;
+    private static final int JOURNAL_MAGIC = 0x424d5344;
+    private static final String OBJECTS = "objects";
+    private static final byte TOMBSTONE = 'T';
+    private static final int TOMBSTONE_SIZE = 9;
+
+    private final Map<String, Body> bodies = new HashMap<String, Body>();
+    private long dead = 0;
+    private final File directory;
+    private final Map<Long, DedupMessage> live = new LinkedHashMap<Long, DedupMessage>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private long nextId = 1;
+    private final File objects;
+    private FileChannel out;
+    private final ByteBuffer record = ByteBuffer.allocate(ENVELOPED_HEADER);
+    private long size;
+    private final List<File> unsynced = new ArrayList<File>();
+
+    /**
+     * @param directory where the journal and the emails are kept
+     * @throws BumsinkException
+     */
+    DedupStorage(final File directory) throws BumsinkException {
+
+        this.directory = directory;
+        objects = new File(directory, OBJECTS);
+        for (final File dir : new File[] { directory, objects }) {
+            if (!dir.exists()) {
+                dir.mkdir();
+            }
+            if (!dir.isDirectory()) {
+                throw new BumsinkException("Not a directory: " + dir.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Forces everything out, then rewrites the journal if enough of it is
+     * dead.
+     *
+     * @see Storage#checkpoint(Index)
+     */
+    @Override
+    public synchronized void checkpoint(final Index index) throws IOException {
+
+        sync();
+        if (dead == 0 || dead * 100 < size * COMPACT_THRESHOLD) {
+            return;
+        }
+        final File journal = new File(directory, JOURNAL);
+        final File temp = new File(directory, JOURNAL + ".tmp");
+        final FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long written;
+        try {
+            written = writeHeader(channel);
+            for (final DedupMessage message : live.values()) {
+                final byte[] envelope = message.getEnvelope().toBytes();
+                record.clear();
+                putDelivery(message.getId(), message.getArrival(), message.getHeaderOctets(), message.getLength(),
+                    HEX.parseHex(message.getKey()), envelope.length);
+                record.flip();
+                written += write(channel, record);
+                written += write(channel, ByteBuffer.wrap(envelope));
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        FileStorage.force(directory);
+        out.close();
+        out = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE);
+        out.position(written);
+        size = written;
+        dead = 0;
+    }
+
+    /**
+     * Replays the journal, then deletes any email file that no delivery
+     * refers to, left behind by a crash part way through a save.
+     *
+     * @see Storage#load(Index)
+     */
+    @Override
+    public synchronized void load(final Index index) throws IOException {
+
+        try {
+            final File journal = new File(directory, JOURNAL);
+            final Map<Long, long[]> found = new LinkedHashMap<Long, long[]>();
+            final Map<Long, String> keys = new HashMap<Long, String>();
+            final Map<Long, Envelope> envelopes = new HashMap<Long, Envelope>();
+            if (journal.exists()) {
+                size = replay(journal, found, keys, envelopes);
+            } else {
+                out = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                size = writeHeader(out);
+                out.force(true);
+                out.close();
+            }
+
+            for (final Map.Entry<Long, long[]> entry : found.entrySet()) {
+                final long id = entry.getKey();
+                final long[] meta = entry.getValue();
+                final String key = keys.get(id);
+                Body body = bodies.get(key);
+                if (body == null) {
+                    File file = file(key, false);
+                    if (!file.isFile()) {
+                        file = file(key, true);
+                    }
+                    if (!file.isFile()) {
+                        err("Delivery " + id + " refers to a missing email: " + key);
+                        continue;
+                    }
+                    body = new Body(file);
+                    bodies.put(key, body);
+                }
+                body.refs++;
+                final DedupMessage message = new DedupMessage(this, id, key, body.file, meta[2], meta[0]);
+                message.setHeaderOctets(meta[1]);
+                message.setEnvelope(envelopes.get(id));
+                live.put(id, message);
+                index.add(message, Long.toString(id), meta[2], meta[0]);
+            }
+
+            final File[] dirs = objects.listFiles();
+            if (dirs != null) {
+                for (final File dir : dirs) {
+                    final File[] files = dir.listFiles();
+                    if (files != null) {
+                        for (final File file : files) {
+                            String key = file.getName();
+                            if (Compression.isCompressed(file)) {
+                                key = key.substring(0, key.length() - Compression.SUFFIX.length());
+                            }
+                            final Body body = bodies.get(key);
+                            if (body == null || !body.file.equals(file)) {
+                                file.delete();
+                            }
+                        }
+                    }
+                }
+            }
+
+            out = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE);
+            out.position(size);
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    /**
+     * Records that a delivery has been deleted, and deletes the email's file
+     * if it was the last one.
+     *
+     * @param message
+     * @throws IOException
+     */
+    synchronized void release(final DedupMessage message) throws IOException {
+
+        if (live.remove(message.getId()) == null) {
+            return;
+        }
+        record.clear();
+        record.put(TOMBSTONE).putLong(message.getId());
+        record.flip();
+        try {
+            write(out, record);
+        } catch (final IOException e) {
+            out.truncate(size);
+            throw e;
+        }
+        size += TOMBSTONE_SIZE;
+        // A delivery journaled before envelopes were kept is a little
+        // smaller than this, until the journal is next rewritten.
+        dead += ENVELOPED_HEADER + message.getEnvelope().toBytes().length + TOMBSTONE_SIZE;
+
+        final Body body = bodies.get(message.getKey());
+        body.refs--;
+        if (body.refs == 0) {
+            bodies.remove(message.getKey());
+            unsynced.remove(body.file);
+            if (!body.file.delete()) {
+                err("Could not delete " + body.file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Writes the email only if it isn't already stored, then journals the
+     * delivery.
+     *
+     * @see Storage#save(Spool, Index)
+     */
+    @Override
+    public Message save(final Spool spool, final Index index) throws IOException {
+
+        final long octets = spool.getLength();
+        final long header = spool.getHeaderOctets();
+        final Envelope envelope = spool.getEnvelope();
+        final byte[] bytes = envelope.toBytes();
+        final long arrival = System.currentTimeMillis();
+        final byte[] digest = spool.getDigest();
+        final String key = HEX.formatHex(digest);
+        while (loaded.getCount() > 0) {
+            // Ids and reference counts aren't known until the journal has
+            // been replayed.
+            try {
+                loaded.await();
+            } catch (final InterruptedException e) {
+                // Don't care
+            }
+        }
+        final DedupMessage message;
+        synchronized (this) {
+            Body body = bodies.get(key);
+            if (body == null) {
+                final File file = file(key, COMPRESSION);
+                final File dir = file.getParentFile();
+                if (!dir.isDirectory() && dir.mkdir()) {
+                    unsynced.add(dir);
+                }
+                if (COMPRESSION) {
+                    spool.commitCompressed(file);
+                } else {
+                    spool.commit(file);
+                }
+                unsynced.add(file);
+                body = new Body(file);
+                bodies.put(key, body);
+            } else {
+                spool.discard();
+            }
+
+            final long id = nextId++;
+            record.clear();
+            putDelivery(id, arrival, header, octets, digest, bytes.length);
+            record.flip();
+            try {
+                write(out, record);
+                write(out, ByteBuffer.wrap(bytes));
+            } catch (final IOException e) {
+                out.truncate(size);
+                if (body.refs == 0) {
+                    bodies.remove(key);
+                    body.file.delete();
+                }
+                throw e;
+            }
+            size += ENVELOPED_HEADER + bytes.length;
+            body.refs++;
+            message = new DedupMessage(this, id, key, body.file, octets, arrival);
+            message.setHeaderOctets(header);
+            message.setEnvelope(envelope);
+            live.put(id, message);
+        }
+        index.add(message, Long.toString(message.getId()), octets, arrival);
+        return message;
+    }
+
+    /**
+     * Forces each email and directory created since the last sync, then the
+     * journal. The list is cleared even if one fails, so a single bad file
+     * can't fail every sync after it.
+     *
+     * @see Storage#sync()
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+
+        try {
+            for (final File file : unsynced) {
+                FileStorage.force(file);
+                FileStorage.force(file.getParentFile());
+            }
+        } finally {
+            unsynced.clear();
+        }
+        out.force(true);
+    }
+
+    private File file(final String key, final boolean compressed) {
+
+        return new File(new File(objects, key.substring(0, 2)), compressed ? key + Compression.SUFFIX : key);
+    }
+
+    /**
+     * Puts everything but the envelope itself in the record.
+     */
+    private void putDelivery(final long id, final long arrival, final long header, final long octets,
+        final byte[] digest, final int envelope) {
+
+        record.put(ENVELOPED).putLong(id).putLong(arrival).putLong(header).putLong(octets).put(digest)
+            .putInt(envelope);
+    }
+
+    /**
+     * Reads the journal, cutting off anything after the last complete
+     * record.
+     *
+     * @return the size of the journal
+     */
+    private long replay(final File journal, final Map<Long, long[]> found, final Map<Long, String> keys,
+        final Map<Long, Envelope> envelopes) throws IOException {
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        long position = 0;
+        try {
+            if (in.readInt() != JOURNAL_MAGIC) {
+                throw new IOException("Not a journal: " + journal.getAbsolutePath());
+            }
+            nextId = Math.max(nextId, in.readLong());
+            position = JOURNAL_HEADER;
+            final byte[] digest = new byte[DIGEST_SIZE];
+            while (true) {
+                final int type = in.read();
+                if (type == DELIVERY || type == ENVELOPED) {
+                    final long id = in.readLong();
+                    final long[] meta = new long[] { in.readLong(), in.readLong(), in.readLong(), DELIVERY_SIZE };
+                    in.readFully(digest);
+                    Envelope envelope = Envelope.NONE;
+                    if (type == ENVELOPED) {
+                        final int length = in.readInt();
+                        if (length < 0 || length > journal.length() - position - ENVELOPED_HEADER) {
+                            break;
+                        }
+                        final byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        try {
+                            envelope = Envelope.read(bytes);
+                        } catch (final IOException e) {
+                            break;
+                        }
+                        meta[3] = ENVELOPED_HEADER + length;
+                    }
+                    found.put(id, meta);
+                    keys.put(id, HEX.formatHex(digest));
+                    envelopes.put(id, envelope);
+                    nextId = Math.max(nextId, id + 1);
+                    position += meta[3];
+                } else if (type == TOMBSTONE) {
+                    final long id = in.readLong();
+                    final long[] meta = found.remove(id);
+                    keys.remove(id);
+                    envelopes.remove(id);
+                    dead += (meta == null ? DELIVERY_SIZE : meta[3]) + TOMBSTONE_SIZE;
+                    position += TOMBSTONE_SIZE;
+                } else {
+                    break;
+                }
+            }
+        } catch (final EOFException e) {
+            // A record that was never finished
+        } finally {
+            in.close();
+        }
+        if (position < journal.length()) {
+            err("Truncating " + journal.getAbsolutePath() + " at " + position);
+            final FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.truncate(position);
+            } finally {
+                channel.close();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Starts a journal. The next id is kept here so that ids are never
+     * reused, even after the deliveries holding the highest ones are gone.
+     *
+     * @return the size of the header
+     */
+    private long writeHeader(final FileChannel channel) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(JOURNAL_HEADER);
+        buffer.putInt(JOURNAL_MAGIC).putLong(nextId);
+        buffer.flip();
+        return write(channel, buffer);
+    }
+
+    private static int write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+
+        final int count = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return count;
+    }
+
+
+    /**
+     * An email's file and the number of deliveries that refer to it.
+     */
+    private static class Body {
+
+        private final File file;
+        private int refs = 0;
+
+        private Body(final File file) {
+
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The sender and recipients an email was delivered with over SMTP. Each
+ * {@link Storage} keeps it alongside the email, never in it, so what RETR
+ * sends is exactly what the client sent, and nothing a client writes in its
+ * headers can put an email in someone else's mailbox.
+ * <p>
+ * The subject is kept here too, taken from the headers as the email is
+ * saved, so the {@link HttpApi} can list and filter emails without reading
+ * any of them.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Envelope {
+
+    /**
+     * For emails saved before envelopes were kept, which belong to no
+     * recipient.
+     */
+    static final Envelope NONE = new Envelope("", new String[0], null);
+
+    private final String[] recipients;
+    private final String sender;
+    private final String subject;
+
+    /**
+     * @param sender the bare address, or an empty string if there wasn't one
+     * @param recipients the bare addresses
+     * @param subject as {@link Spool#readSubject()} reads it, or null if it
+     *            isn't known
+     */
+    Envelope(final String sender, final String[] recipients, final String subject) {
+
+        this.sender = sender;
+        this.recipients = recipients;
+        this.subject = subject;
+    }
+
+    String[] getRecipients() {
+
+        return recipients;
+    }
+
+    String getSender() {
+
+        return sender;
+    }
+
+    /**
+     * @return the subject, or null if it wasn't known when the email was
+     *         saved
+     * @see Message#readEnvelope()
+     */
+    String getSubject() {
+
+        return subject;
+    }
+
+    /**
+     * @return the envelope as {@link #read(byte[])} reads it
+     */
+    byte[] toBytes() {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write(new DataOutputStream(bytes));
+        } catch (final IOException e) {
+            // Not from a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the sender, the number of recipients, each recipient and the
+     * subject, if it is known.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void write(final DataOutput out) throws IOException {
+
+        out.writeUTF(sender);
+        out.writeInt(recipients.length);
+        for (final String recipient : recipients) {
+            out.writeUTF(recipient);
+        }
+        out.writeBoolean(subject != null);
+        if (subject != null) {
+            out.writeUTF(subject);
+        }
+    }
+
+    /**
+     * @param bytes as written by {@link #toBytes()}
+     * @return the envelope
+     * @throws IOException if the bytes aren't an envelope
+     */
+    static Envelope read(final byte[] bytes) throws IOException {
+
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * @param in positioned at an envelope written by
+     *            {@link #write(DataOutput)}
+     * @return the envelope
+     * @throws IOException
+     */
+    static Envelope read(final DataInput in) throws IOException {
+
+        final String sender = in.readUTF();
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Not an envelope");
+        }
+        // Grown as it is read, so a damaged count runs out of input rather
+        // than memory.
+        final List<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            recipients.add(in.readUTF());
+        }
+        final String subject = in.readBoolean() ? in.readUTF() : null;
+        return new Envelope(sender, recipients.toArray(new String[recipients.size()]), subject);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.ALL_THREADS;
+import static com.ashtonit.bumsink.Main.NIO_THREADS;
+import static com.ashtonit.bumsink.Main.RUNNING;
+import static com.ashtonit.bumsink.Main.SO_TIMEOUT;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * One of a fixed set of selector threads that run the sessions of the "nio"
+ * engine. Connections are handed out round robin by {@link #next()} and
+ * stay on the same loop until they close.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class EventLoop extends Thread {
+
+    private static final Object LOCK = new Object();
+    private static EventLoop[] loops;
+    private static int next = 0;
+
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final Selector selector;
+
+    private EventLoop(final ThreadGroup threadGroup, final int number) throws BumsinkException {
+
+        super(threadGroup, EventLoop.class.getName() + "-" + number);
+        try {
+            selector = Selector.open();
+        } catch (final IOException e) {
+            throw new BumsinkException(e);
+        }
+        setDaemon(true);
+    }
+
+    static EventLoop next() throws BumsinkException {
+
+        synchronized (LOCK) {
+            if (loops == null) {
+                loops = new EventLoop[NIO_THREADS];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new EventLoop(ALL_THREADS, i);
+                    loops[i].start();
+                }
+            }
+            final EventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+            return loop;
+        }
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        while (RUNNING) {
+            try {
+                selector.select(SO_TIMEOUT);
+                Runnable task = pending.poll();
+                while (task != null) {
+                    task.run();
+                    task = pending.poll();
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            } catch (final IOException e) {
+                e.printStackTrace();
+            } catch (final Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs a task on this loop's thread, between selects. May be called from
+     * any thread.
+     *
+     * @param task
+     */
+    void execute(final Runnable task) {
+
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop. May be called from any
+     * thread.
+     *
+     * @param channel
+     * @param server
+     */
+    void register(final SocketChannel channel, final Server server) {
+
+        execute(new Runnable() {
+
+            public void run() {
+
+                accept(channel, server);
+            }
+        });
+    }
+
+    private void accept(final SocketChannel channel, final Server server) {
+
+        ChannelConnection connection = null;
+        try {
+            channel.configureBlocking(false);
+            final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            connection = new ChannelConnection(key, this);
+            key.attach(connection);
+            connection.open(server.newSession(connection));
+        } catch (final BumsinkException e) {
+            e.printStackTrace();
+            close(channel, connection);
+        } catch (final IOException e) {
+            close(channel, connection);
+        }
+    }
+
+    private void close(final SocketChannel channel, final ChannelConnection connection) {
+
+        if (connection != null) {
+            connection.abort();
+        } else {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // Don't care
+            }
+        }
+    }
+
+    private void handle(final SelectionKey key) {
+
+        final ChannelConnection connection = (ChannelConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+        } catch (final IOException e) {
+            connection.abort();
+        } catch (final Throwable t) {
+            t.printStackTrace();
+            connection.abort();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+
+/**
+ * JDK Flight Recorder events, so a recording shows BUMSink's own work
+ * alongside garbage collection and I/O. Each event is timed with begin()
+ * and end(), and its fields are only filled in if shouldCommit() says the
+ * recording wants it. Events shorter than their threshold are dropped, and
+ * when nothing is recording none of it costs more than a check.
+ * <p>
+ * Fields are package-private so the code being recorded can fill them in;
+ * JFR reads them directly.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Events {
+
+    private static final String CATEGORY = "BUMSink";
+
+    private Events() {
+
+        // Not for instantiating
+    }
+
+    /**
+     * Ends a command event and commits it, if the recording wants it.
+     *
+     * @param event begun when the command was read
+     * @param protocol
+     * @param command
+     * @param read the bytes of the command
+     * @param written the bytes of the reply
+     */
+    static void commit(final CommandEvent event, final String protocol, final String command, final long read,
+        final long written) {
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = protocol;
+            event.command = command;
+            event.read = read;
+            event.written = written;
+            event.commit();
+        }
+    }
+
+    /**
+     * Ends a session event and commits it, if the recording wants it.
+     *
+     * @param event begun when the session started
+     * @param protocol
+     * @param commands how many commands the session handled
+     */
+    static void commit(final SessionEvent event, final String protocol, final int commands) {
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = protocol;
+            event.commands = commands;
+            event.commit();
+        }
+    }
+
+
+    /**
+     * A connection handed to an engine by a server's accept loop.
+     */
+    @Name("com.ashtonit.bumsink.Accept")
+    @Label("Accept")
+    @Category(CATEGORY)
+    @Description("A connection handed over by an accept loop")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class AcceptEvent extends Event {
+
+        @Label("Remote Address")
+        String remote;
+
+        @Label("Server")
+        String server;
+    }
+
+
+    /**
+     * One SMTP or POP3 command, or the commit at the end of an email.
+     */
+    @Name("com.ashtonit.bumsink.Command")
+    @Label("Command")
+    @Category(CATEGORY)
+    @Description("An SMTP or POP3 command, not counting the wait to send the reply")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class CommandEvent extends Event {
+
+        @Label("Command")
+        String command;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long read;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long written;
+    }
+
+
+    /**
+     * An email deleted from disk.
+     */
+    @Name("com.ashtonit.bumsink.Purge")
+    @Label("Purge")
+    @Category(CATEGORY)
+    @Description("An email deleted from the storage")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class PurgeEvent extends Event {
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+
+    /**
+     * An email written to the storage by a store writer.
+     */
+    @Name("com.ashtonit.bumsink.Save")
+    @Label("Save")
+    @Category(CATEGORY)
+    @Description("An email written to the storage, before any sync")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class SaveEvent extends Event {
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+
+    /**
+     * An SMTP or POP3 session, from when it starts until it closes.
+     */
+    @Name("com.ashtonit.bumsink.Session")
+    @Label("Session")
+    @Category(CATEGORY)
+    @Description("An SMTP or POP3 session, from start to close")
+    @StackTrace(false)
+    @Threshold("0 ms")
+    static class SessionEvent extends Event {
+
+        @Label("Commands")
+        int commands;
+
+        @Label("Protocol")
+        String protocol;
+    }
+
+
+    /**
+     * A batch of saved emails forced to disk.
+     */
+    @Name("com.ashtonit.bumsink.Sync")
+    @Label("Sync")
+    @Category(CATEGORY)
+    @Description("A batch of saved emails forced to disk")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class SyncEvent extends Event {
+
+        @Label("Emails")
+        int emails;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The emails most recently saved, for clients that want to hear about new
+ * email rather than keep asking. Each event has a sequence number one higher
+ * than the last, starting from 1. Only the last {@link #SIZE} events are
+ * kept, so a subscriber that falls further behind than that sees a gap in
+ * the numbers.
+ * <p>
+ * An event is described when it is published, so a subscriber never has to
+ * read the email, which may be gone by the time it gets there, and the feed
+ * doesn't keep deleted emails alive. Waiting uses a {@link Condition} rather
+ * than Object.wait(), which would pin a virtual thread to its carrier.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Feed {
+
+    static final int SIZE = 4096;
+
+    private final Event[] events = new Event[SIZE];
+    private long last = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+
+    /**
+     * @return the sequence number of the last event, or 0 if there hasn't
+     *         been one
+     */
+    long getLast() {
+
+        lock.lock();
+        try {
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that an email has been saved, and wakes up whoever is waiting
+     * for it.
+     *
+     * @param message
+     * @param uid
+     * @param octets
+     * @param arrival
+     */
+    void publish(final Message message, final String uid, final long octets, final long arrival) {
+
+        final Envelope envelope = message.getEnvelope();
+        final StringBuilder summary = new StringBuilder();
+        HttpApi.summary(summary, uid, arrival, octets, envelope);
+        lock.lock();
+        try {
+            last++;
+            events[(int) (last % SIZE)] = new Event(last, arrival, envelope, summary.toString());
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for events after the one given.
+     *
+     * @param after the sequence number of the last event already seen
+     * @param timeout how long to wait, in milliseconds
+     * @return the events still held after the one given, oldest first, or
+     *         none if the wait timed out
+     * @throws InterruptedException
+     */
+    List<Event> read(final long after, final long timeout) throws InterruptedException {
+
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (last <= after && remaining > 0) {
+                remaining = published.awaitNanos(remaining);
+            }
+            final List<Event> read = new ArrayList<Event>();
+            for (long sequence = Math.max(after + 1, last - SIZE + 1); sequence <= last; sequence++) {
+                read.add(events[(int) (sequence % SIZE)]);
+            }
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * A saved email, as much as a subscriber needs to know about it.
+     */
+    static class Event {
+
+        private final long arrival;
+        private final Envelope envelope;
+        private final long sequence;
+        private final String summary;
+
+        private Event(final long sequence, final long arrival, final Envelope envelope, final String summary) {
+
+            this.sequence = sequence;
+            this.arrival = arrival;
+            this.envelope = envelope;
+            this.summary = summary;
+        }
+
+        long getArrival() {
+
+            return arrival;
+        }
+
+        Envelope getEnvelope() {
+
+            return envelope;
+        }
+
+        long getSequence() {
+
+            return sequence;
+        }
+
+        /**
+         * @return the email described in JSON, without the braces around it
+         */
+        String getSummary() {
+
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * An email saved by {@link FileStorage}, in a file of its own, which may be
+ * compressed.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class FileMessage extends Message {
+
+    private final boolean compressed;
+    private final File file;
+    private final long length;
+
+    /**
+     * @param file
+     * @param length
+     */
+    FileMessage(final File file, final long length) {
+
+        this.file = file;
+        this.length = length;
+        compressed = file != null && Compression.isCompressed(file);
+    }
+
+    /**
+     * @see Message#getChannel()
+     */
+    @Override
+    FileChannel getChannel() throws IOException, BumsinkException {
+
+        if (file == null) {
+            throw new BumsinkException("No file found");
+        }
+        if (compressed) {
+            throw new BumsinkException("Compressed: " + file.getAbsolutePath());
+        }
+        return new FileInputStream(file).getChannel();
+    }
+
+    /**
+     * @see Message#getLength()
+     */
+    @Override
+    long getLength() {
+
+        return length;
+    }
+
+    /**
+     * @see Message#getStream()
+     */
+    @Override
+    InputStream getStream() throws IOException, BumsinkException {
+
+        if (compressed) {
+            return Compression.open(file);
+        }
+        return super.getStream();
+    }
+
+    /**
+     * @see Message#isCompressed()
+     */
+    @Override
+    boolean isCompressed() {
+
+        return compressed;
+    }
+
+    /**
+     * @see Message#purge()
+     */
+    @Override
+    void purge() {
+
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
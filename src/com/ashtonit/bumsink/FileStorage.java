@@ -0,0 +1,413 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.COMPRESSION;
+import static com.ashtonit.bumsink.Main.DURABILITY;
+import static com.ashtonit.bumsink.Main.DURABILITY_FSYNC;
+import static com.ashtonit.bumsink.Main.RECOVERY_THREADS;
+import static com.ashtonit.bumsink.Main.err;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+
+/**
+ * The original layout: one file per email, named after a hash of its
+ * contents, directly in the mail directory. Names starting with a dot are
+ * not emails. With {@link Main#COMPRESSION} on, new emails are compressed.
+ * <p>
+ * A checkpoint writes the name, size, arrival time, header size and
+ * {@link Envelope} of every email to a snapshot file, so a restart only has
+ * to list the directory and look at the files that aren't in the snapshot,
+ * which it does on {@link Main#RECOVERY_THREADS} threads. Emails can be saved
+ * while that is going on.
+ * <p>
+ * The envelope of each email saved is also appended to a journal, as the
+ * file itself only holds what the client sent. Each checkpoint starts a new
+ * journal and keeps the one before it, so whatever the snapshot missed is
+ * still in one of the two.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class FileStorage implements Storage {
+
+    private static final String ENVELOPES = ".envelopes";
+    private static final String ENVELOPES_OLD = ".envelopes.old";
+    private static final String SNAPSHOT = ".index";
+    private static final int SNAPSHOT_MAGIC = 0x424d5334;
+
+    private final File directory;
+    private FileOutputStream envelopes;
+    private Map<String, Envelope> journaled;
+    private boolean recovering = true;
+    private final Set<String> saved = new HashSet<String>();
+    private final Object snapshotLock = new Object();
+    private final List<File> unsynced = new ArrayList<File>();
+
+    /**
+     * @param directory
+     */
+    FileStorage(final File directory) {
+
+        this.directory = directory;
+    }
+
+    /**
+     * Writes a new snapshot of the index.
+     *
+     * @see Storage#checkpoint(Index)
+     */
+    @Override
+    public void checkpoint(final Index index) throws IOException {
+
+        final Snapshot snapshot = index.snapshot();
+        final int count = snapshot.size();
+        synchronized (snapshotLock) {
+            final File temp = new File(directory, SNAPSHOT + ".tmp");
+            final FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeUTF(snapshot.getUid(i));
+                    out.writeLong(snapshot.getOctets(i));
+                    out.writeLong(snapshot.getArrival(i));
+                    out.writeLong(snapshot.getMessage(i).getHeaderOctets());
+                    snapshot.getMessage(i).getEnvelope().write(out);
+                }
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            Files.move(temp.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        synchronized (this) {
+            openEnvelopes();
+            envelopes.close();
+            Files.move(new File(directory, ENVELOPES).toPath(), new File(directory, ENVELOPES_OLD).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            envelopes = new FileOutputStream(new File(directory, ENVELOPES), true);
+        }
+        force(directory);
+    }
+
+    /**
+     * @see Storage#load(Index)
+     */
+    @Override
+    public void load(final Index index) throws IOException {
+
+        final Map<String, Envelope> found = new HashMap<String, Envelope>();
+        final Map<String, long[]> known = readSnapshot(found);
+        final Map<String, Envelope> unsnapshotted;
+        synchronized (this) {
+            openEnvelopes();
+            unsnapshotted = journaled;
+            journaled = null;
+        }
+        final List<String> unknown = new ArrayList<String>();
+        final DirectoryStream<Path> paths = Files.newDirectoryStream(directory.toPath());
+        try {
+            for (final Path path : paths) {
+                final String name = path.getFileName().toString();
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                final long[] entry = known.get(name);
+                if (entry == null) {
+                    unknown.add(name);
+                } else {
+                    add(index, name, entry[0], entry[1], entry[2], found.get(name));
+                }
+            }
+        } finally {
+            paths.close();
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        final int chunk = Math.max(1, (unknown.size() + RECOVERY_THREADS - 1) / RECOVERY_THREADS);
+        for (int start = 0; start < unknown.size(); start += chunk) {
+            final List<String> names = unknown.subList(start, Math.min(start + chunk, unknown.size()));
+            tasks.add(new Callable<Void>() {
+
+                public Void call() {
+
+                    for (final String name : names) {
+                        final File file = new File(directory, name);
+                        if (!file.isFile()) {
+                            continue;
+                        }
+                        Envelope envelope = unsnapshotted.get(name);
+                        if (envelope == null) {
+                            envelope = Envelope.NONE;
+                        }
+                        if (!Compression.isCompressed(file)) {
+                            add(index, name, file.length(), file.lastModified(), -1, envelope);
+                            continue;
+                        }
+                        try {
+                            final long[] header = Compression.readHeader(file);
+                            add(index, name, header[0], file.lastModified(), header[1], envelope);
+                        } catch (final IOException e) {
+                            err("Ignoring " + file.getAbsolutePath() + ": " + e.getMessage());
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        Store.runAll(tasks);
+
+        synchronized (this) {
+            recovering = false;
+            saved.clear();
+        }
+    }
+
+    /**
+     * @see Storage#save(Spool, Index)
+     */
+    @Override
+    public Message save(final Spool spool, final Index index) throws IOException {
+
+        final long octets = spool.getLength();
+        final long header = spool.getHeaderOctets();
+        final Envelope envelope = spool.getEnvelope();
+        final File file;
+        synchronized (this) {
+            final String name = Integer.toString(spool.getHash());
+            final String suffix = COMPRESSION ? Compression.SUFFIX : "";
+            File candidate = new File(directory, name + suffix);
+            int idx = 0;
+            while (candidate.exists()) {
+                candidate = new File(directory, name + "_" + idx + suffix);
+                idx++;
+            }
+            // Journaled first, so an email is never on disk without it
+            journal(candidate.getName(), envelope);
+            if (COMPRESSION) {
+                spool.commitCompressed(candidate);
+            } else {
+                spool.commit(candidate);
+            }
+            file = candidate;
+            // Only an fsync commit ever syncs, so only then is it worth
+            // remembering what to force.
+            if (DURABILITY_FSYNC.equals(DURABILITY)) {
+                unsynced.add(file);
+            }
+            if (recovering) {
+                // Keeps load() from adding it a second time.
+                saved.add(file.getName());
+            }
+        }
+        final Message message = new FileMessage(file, octets);
+        message.setHeaderOctets(header);
+        message.setEnvelope(envelope);
+        index.add(message, file.getName(), octets, System.currentTimeMillis());
+        return message;
+    }
+
+    /**
+     * Forces the journal and each file saved since the last sync, then the
+     * directory that names them. Files purged in the meantime are skipped,
+     * and the list is cleared even if one fails.
+     *
+     * @see Storage#sync()
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+
+        if (unsynced.isEmpty()) {
+            return;
+        }
+        try {
+            envelopes.getFD().sync();
+            for (final File file : unsynced) {
+                force(file);
+            }
+        } finally {
+            unsynced.clear();
+        }
+        force(directory);
+    }
+
+    private void add(final Index index, final String name, final long octets, final long arrival, final long header,
+        final Envelope envelope) {
+
+        synchronized (this) {
+            if (saved.contains(name)) {
+                return;
+            }
+        }
+        final Message message = new FileMessage(new File(directory, name), octets);
+        message.setHeaderOctets(header);
+        message.setEnvelope(envelope);
+        index.add(message, name, octets, arrival);
+    }
+
+    /**
+     * Appends an email's envelope to the journal, in a single write.
+     */
+    private void journal(final String name, final Envelope envelope) throws IOException {
+
+        openEnvelopes();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(name);
+        envelope.write(out);
+        envelopes.write(bytes.toByteArray());
+    }
+
+    /**
+     * Reads both journals, for {@link #load(Index)}, and opens the current
+     * one for appending, unless that has already been done. Whichever of a
+     * save and the load comes first does it.
+     */
+    private synchronized void openEnvelopes() throws IOException {
+
+        if (envelopes != null) {
+            return;
+        }
+        journaled = new HashMap<String, Envelope>();
+        readEnvelopes(new File(directory, ENVELOPES_OLD), journaled);
+        readEnvelopes(new File(directory, ENVELOPES), journaled);
+        envelopes = new FileOutputStream(new File(directory, ENVELOPES), true);
+    }
+
+    /**
+     * Reads a journal, cutting off anything after the last complete record.
+     * Later records win, as a name can be used again once its file is gone.
+     */
+    private void readEnvelopes(final File file, final Map<String, Envelope> found) throws IOException {
+
+        if (!file.isFile()) {
+            return;
+        }
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        final ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
+        final DataInputStream in = new DataInputStream(stream);
+        int position = 0;
+        try {
+            while (position < bytes.length) {
+                final String name = in.readUTF();
+                found.put(name, Envelope.read(in));
+                position = bytes.length - stream.available();
+            }
+        } catch (final IOException e) {
+            // A record that was never finished
+        }
+        if (position < bytes.length) {
+            err("Truncating " + file.getAbsolutePath() + " at " + position);
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.truncate(position);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @param envelopes where to put the envelopes by name
+     * @return the snapshot by name, or nothing if there isn't a usable one
+     */
+    private Map<String, long[]> readSnapshot(final Map<String, Envelope> envelopes) {
+
+        final Map<String, long[]> known = new HashMap<String, long[]>();
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(
+                directory, SNAPSHOT))));
+            try {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a snapshot");
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String name = in.readUTF();
+                    known.put(name, new long[] { in.readLong(), in.readLong(), in.readLong() });
+                    envelopes.put(name, Envelope.read(in));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final FileNotFoundException e) {
+            // Don't care
+        } catch (final IOException e) {
+            err("Ignoring snapshot: " + e.getMessage());
+            known.clear();
+            envelopes.clear();
+        }
+        return known;
+    }
+
+    /**
+     * Forces a file or directory out to the disk. Not every platform lets a
+     * directory be opened like this; where it can't be, the error is
+     * ignored. A file that has already been deleted has nothing left to
+     * force, so that isn't an error either.
+     *
+     * @param file
+     * @throws IOException
+     */
+    static void force(final File file) throws IOException {
+
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (final NoSuchFileException e) {
+            return;
+        } catch (final IOException e) {
+            if (file.isDirectory()) {
+                return;
+            }
+            throw e;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
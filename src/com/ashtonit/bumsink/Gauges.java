@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+
+/**
+ * An MBean of read-only numbers, worked out when they are asked for. A
+ * dynamic MBean rather than a standard one, so nothing has to be public.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+abstract class Gauges implements DynamicMBean {
+
+    private final MBeanInfo info;
+    private final Set<String> names;
+
+    /**
+     * @param description
+     * @param names the attributes, all of them longs
+     */
+    Gauges(final String description, final String... names) {
+
+        this.names = new HashSet<String>(Arrays.asList(names));
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.length];
+        for (int i = 0; i < names.length; i++) {
+            attributes[i] = new MBeanAttributeInfo(names[i], "long", names[i], true, false, false);
+        }
+        info = new MBeanInfo(getClass().getName(), description, attributes, new MBeanConstructorInfo[0],
+            new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+
+    /**
+     * @see DynamicMBean#getAttribute(String)
+     */
+    public Object getAttribute(final String name) throws AttributeNotFoundException {
+
+        if (!names.contains(name)) {
+            throw new AttributeNotFoundException(name);
+        }
+        return Long.valueOf(get(name));
+    }
+
+    /**
+     * @see DynamicMBean#getAttributes(String[])
+     */
+    public AttributeList getAttributes(final String[] names) {
+
+        final AttributeList list = new AttributeList();
+        for (final String name : names) {
+            if (this.names.contains(name)) {
+                list.add(new Attribute(name, Long.valueOf(get(name))));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @see DynamicMBean#getMBeanInfo()
+     */
+    public MBeanInfo getMBeanInfo() {
+
+        return info;
+    }
+
+    /**
+     * @see DynamicMBean#invoke(String, Object[], String[])
+     */
+    public Object invoke(final String action, final Object[] params, final String[] signature)
+        throws ReflectionException {
+
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    /**
+     * @see DynamicMBean#setAttribute(Attribute)
+     */
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    /**
+     * @see DynamicMBean#setAttributes(AttributeList)
+     */
+    public AttributeList setAttributes(final AttributeList attributes) {
+
+        return new AttributeList();
+    }
+
+    /**
+     * @param name one of the names given to the constructor
+     * @return the attribute's value now
+     */
+    abstract long get(String name);
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counts how long something takes, in buckets that split each power of two
+ * nanoseconds into four, so a percentile is never more than a quarter out.
+ * Recording is a handful of atomic operations and allocates nothing, so it
+ * can stay on under load.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Histogram extends Gauges {
+
+    private static final int BUCKETS = 252;
+    private static final int LINEAR = 16;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * @param description
+     */
+    Histogram(final String description) {
+
+        super(description, "Count", "MeanMicros", "P50Micros", "P90Micros", "P99Micros", "P999Micros",
+            "MaxMicros");
+    }
+
+    /**
+     * @param nanos how long it took
+     */
+    void record(final long nanos) {
+
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.add(value);
+        long seen;
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @see Gauges#get(String)
+     */
+    @Override
+    long get(final String name) {
+
+        if ("Count".equals(name)) {
+            return count();
+        } else if ("MeanMicros".equals(name)) {
+            final long count = count();
+            return count == 0 ? 0 : total.sum() / count / 1000;
+        } else if ("P50Micros".equals(name)) {
+            return percentile(0.5) / 1000;
+        } else if ("P90Micros".equals(name)) {
+            return percentile(0.9) / 1000;
+        } else if ("P99Micros".equals(name)) {
+            return percentile(0.99) / 1000;
+        } else if ("P999Micros".equals(name)) {
+            return percentile(0.999) / 1000;
+        } else {
+            return max.get() / 1000;
+        }
+    }
+
+    private long count() {
+
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the top of the bucket holding the percentile, in nanoseconds
+     */
+    private long percentile(final double fraction) {
+
+        final long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        final long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(top(i), max.get());
+            }
+        }
+        return 0;
+    }
+
+    private static int bucket(final long nanos) {
+
+        if (nanos < LINEAR) {
+            return (int) nanos;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return LINEAR + (exponent - 4) * 4 + (int) ((nanos >>> (exponent - 2)) & 3);
+    }
+
+    private static long top(final int bucket) {
+
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        final int exponent = (bucket - LINEAR) / 4 + 4;
+        final long quarter = (bucket - LINEAR) % 4;
+        return ((4 + quarter + 1) << (exponent - 2)) - 1;
+    }
+}
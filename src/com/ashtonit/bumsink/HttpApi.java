@@ -0,0 +1,574 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.HTTP_HOST;
+import static com.ashtonit.bumsink.Main.HTTP_PORT;
+import static com.ashtonit.bumsink.Main.RUNNING;
+import static com.ashtonit.bumsink.Main.info;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import com.ashtonit.bumsink.Feed.Event;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * An HTTP interface to the {@link Store} for test harnesses, so checking
+ * for an email costs one small request rather than a POP3 download of the
+ * lot. It listens on {@link Main#HTTP_HOST} and {@link Main#HTTP_PORT}.
+ *
+ * <pre>
+ * GET    /messages                the emails, as JSON, filtered and paged
+ * DELETE /messages                the emails, filtered
+ * GET    /messages/{uid}          one email, as JSON
+ * GET    /messages/{uid}/headers  its headers
+ * GET    /messages/{uid}/raw      the whole email
+ * DELETE /messages/{uid}          one email
+ * GET    /events                  emails as they arrive, filtered
+ * </pre>
+ *
+ * The filters are "recipient", "sender", "subject" (any part of it, ignoring
+ * case), "since" and "until" (milliseconds since the epoch or ISO-8601
+ * instants, since inclusive and until exclusive). With {@link Main#SEARCH}
+ * on, "q" narrows them to the emails with every word of the query in their
+ * {@link SearchIndex}. Listings are oldest first and paged with "offset" and
+ * "limit". Emails are sent as they were received, without the dot-stuffing
+ * they are stored with.
+ * <p>
+ * Events come from the store's {@link Feed}, each numbered with its sequence
+ * number. A client that accepts "text/event-stream" gets server-sent events
+ * for as long as it stays connected. Any other client is answered as soon as
+ * there are events after the one given by "after" (by default, the last
+ * one so far), or after "timeout" milliseconds with none. Either way each
+ * request holds a virtual thread while it waits.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class HttpApi implements HttpHandler {
+
+    private static final String AFTER = "after";
+    private static final int BUFFER_SIZE = 8192;
+    private static final String CHARSET = "UTF-8";
+    private static final int DEFAULT_LIMIT = 100;
+    private static final long DEFAULT_TIMEOUT = 30000;
+    private static final String EVENTS = "/events";
+    private static final Set<String> EVENTS_PARAMETERS = parameters(AFTER, "timeout");
+    private static final String JSON = "application/json; charset=UTF-8";
+    private static final long KEEPALIVE = 15000;
+    private static final String LIMIT = "limit";
+    private static final Set<String> MESSAGES_PARAMETERS = parameters("offset", LIMIT, "q");
+    private static final int MAX_LIMIT = 10000;
+    private static final String PATH = "/messages";
+    private static final String STREAM = "text/event-stream";
+
+    private final HttpServer server;
+    private final Store store;
+
+    /**
+     * @throws BumsinkException
+     */
+    HttpApi() throws BumsinkException {
+
+        store = Store.getInstance();
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(HTTP_HOST), HTTP_PORT), 0);
+        } catch (final IOException e) {
+            throw new BumsinkException(e);
+        }
+        server.createContext(PATH, this);
+        server.createContext(EVENTS, this);
+        // Subscribers hold a thread each for as long as they wait, so they
+        // get virtual ones, which cost next to nothing while they do
+        server.setExecutor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("HttpApi-", 0).factory()));
+    }
+
+    /**
+     * @see HttpHandler#handle(HttpExchange)
+     */
+    public void handle(final HttpExchange exchange) throws IOException {
+
+        try {
+            final String method = exchange.getRequestMethod();
+            final String path = exchange.getRequestURI().getRawPath();
+            final String query = exchange.getRequestURI().getRawQuery();
+            if (path.equals(EVENTS) || path.equals(EVENTS + "/")) {
+                if ("GET".equals(method)) {
+                    events(exchange, parameters(query, EVENTS_PARAMETERS));
+                } else {
+                    error(exchange, 405, "Method not allowed");
+                }
+                return;
+            }
+            if (path.equals(PATH) || path.equals(PATH + "/")) {
+                final Map<String, String> parameters = parameters(query, MESSAGES_PARAMETERS);
+                if ("GET".equals(method)) {
+                    list(exchange, parameters);
+                } else if ("DELETE".equals(method)) {
+                    delete(exchange, parameters);
+                } else {
+                    error(exchange, 405, "Method not allowed");
+                }
+                return;
+            }
+            if (!path.startsWith(PATH + "/")) {
+                error(exchange, 404, "Not found");
+                return;
+            }
+            String uid = path.substring(PATH.length() + 1);
+            String part = null;
+            final int slash = uid.indexOf('/');
+            if (slash >= 0) {
+                part = uid.substring(slash + 1);
+                uid = uid.substring(0, slash);
+            }
+            uid = decode(uid);
+            final Snapshot found = store.find(uid);
+            final Envelope envelope = found == null ? null : envelope(found.getMessage(0));
+            if (envelope == null) {
+                error(exchange, 404, "No such message");
+            } else if (part == null && "GET".equals(method)) {
+                final StringBuilder json = new StringBuilder("{");
+                summary(json, uid, found.getArrival(0), found.getOctets(0), envelope);
+                send(exchange, 200, JSON, json.append('}').toString());
+            } else if (part == null && "DELETE".equals(method)) {
+                final int deleted = store.remove(Collections.singletonList(found.getMessage(0))).size();
+                send(exchange, 200, JSON, "{\"deleted\":" + deleted + "}");
+            } else if ("raw".equals(part) && "GET".equals(method)) {
+                final Message message = found.getMessage(0);
+                fetch(exchange, message, message.getLength());
+            } else if ("headers".equals(part) && "GET".equals(method)) {
+                final Message message = found.getMessage(0);
+                fetch(exchange, message, message.readHeaderOctets());
+            } else if ("raw".equals(part) || "headers".equals(part) || part == null) {
+                error(exchange, 405, "Method not allowed");
+            } else {
+                error(exchange, 404, "Not found");
+            }
+        } catch (final IllegalArgumentException e) {
+            error(exchange, 400, e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // An event stream has already sent its headers, and just ends
+            if (exchange.getResponseCode() < 0) {
+                error(exchange, 503, "Interrupted");
+            }
+        } catch (final BumsinkException e) {
+            e.printStackTrace();
+            error(exchange, 500, e.getMessage());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            error(exchange, 500, e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    void start() {
+
+        server.start();
+        info(getClass().getSimpleName() + " started.");
+    }
+
+    private void delete(final HttpExchange exchange, final Map<String, String> parameters) throws IOException,
+        BumsinkException {
+
+        final Filter filter = new Filter(parameters);
+        final Snapshot snapshot = snapshot(parameters, filter);
+        final List<Message> doomed = new ArrayList<Message>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            final Envelope envelope = envelope(snapshot.getMessage(i));
+            if (envelope != null && filter.matches(snapshot.getArrival(i), envelope)) {
+                doomed.add(snapshot.getMessage(i));
+            }
+        }
+        final int deleted = store.remove(doomed).size();
+        send(exchange, 200, JSON, "{\"deleted\":" + deleted + "}");
+    }
+
+    /**
+     * Waits for the events a client asked for, either as server-sent events
+     * or as one JSON answer.
+     */
+    private void events(final HttpExchange exchange, final Map<String, String> parameters) throws IOException,
+        InterruptedException {
+
+        final Filter filter = new Filter(parameters);
+        final Feed feed = store.getFeed();
+        final String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        long after = feed.getLast();
+        if (parameters.containsKey(AFTER)) {
+            after = Math.min(after, Long.parseLong(parameters.get(AFTER)));
+        } else if (lastEventId != null) {
+            after = Math.min(after, Long.parseLong(lastEventId.trim()));
+        }
+        final long timeout = parameters.containsKey("timeout") ? Long.parseLong(parameters.get("timeout"))
+            : DEFAULT_TIMEOUT;
+        if (after < 0 || timeout < 0) {
+            throw new IllegalArgumentException("after and timeout must not be negative");
+        }
+        final String accept = exchange.getRequestHeaders().getFirst("Accept");
+        if (accept != null && accept.contains(STREAM)) {
+            stream(exchange, filter, after);
+            return;
+        }
+        final StringBuilder json = new StringBuilder("{\"events\":[");
+        final long deadline = System.currentTimeMillis() + timeout;
+        int count = 0;
+        long remaining = timeout;
+        do {
+            for (final Event event : feed.read(after, remaining)) {
+                if (filter.matches(event.getArrival(), event.getEnvelope())) {
+                    if (count++ > 0) {
+                        json.append(',');
+                    }
+                    json.append('{');
+                    event(json, event);
+                    json.append('}');
+                }
+                after = event.getSequence();
+            }
+            remaining = deadline - System.currentTimeMillis();
+        } while (count == 0 && remaining > 0 && RUNNING);
+        json.append("],\"last\":").append(after).append('}');
+        send(exchange, 200, JSON, json.toString());
+    }
+
+    /**
+     * Sends the start of an email, undoing the dot-stuffing it is stored
+     * with.
+     */
+    private void fetch(final HttpExchange exchange, final Message message, final long count) throws IOException,
+        BumsinkException {
+
+        final InputStream in = message.getStream();
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "message/rfc822");
+            exchange.sendResponseHeaders(200, 0);
+            final OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), BUFFER_SIZE);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            boolean lineStart = true;
+            long remaining = count;
+            while (remaining > 0) {
+                final int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Message is shorter than expected");
+                }
+                for (int i = 0; i < n; i++) {
+                    final byte b = buffer[i];
+                    if (lineStart && b == '.') {
+                        lineStart = false;
+                        continue;
+                    }
+                    out.write(b);
+                    lineStart = b == '\n';
+                }
+                remaining -= n;
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void list(final HttpExchange exchange, final Map<String, String> parameters) throws IOException,
+        BumsinkException {
+
+        final Filter filter = new Filter(parameters);
+        final int offset = parameters.containsKey("offset") ? Integer.parseInt(parameters.get("offset")) : 0;
+        final int limit = parameters.containsKey(LIMIT) ? Integer.parseInt(parameters.get(LIMIT)) : DEFAULT_LIMIT;
+        if (offset < 0 || limit < 0 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("offset must not be negative, and limit must be between 0 and "
+                + MAX_LIMIT);
+        }
+        final Snapshot snapshot = snapshot(parameters, filter);
+        final StringBuilder json = new StringBuilder("{\"messages\":[");
+        int total = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            final Envelope envelope = envelope(snapshot.getMessage(i));
+            if (envelope == null || !filter.matches(snapshot.getArrival(i), envelope)) {
+                continue;
+            }
+            if (total >= offset && total < offset + limit) {
+                if (total > offset) {
+                    json.append(',');
+                }
+                json.append('{');
+                summary(json, snapshot.getUid(i), snapshot.getArrival(i), snapshot.getOctets(i), envelope);
+                json.append('}');
+            }
+            total++;
+        }
+        json.append("],\"offset\":").append(offset).append(",\"total\":").append(total).append('}');
+        send(exchange, 200, JSON, json.toString());
+    }
+
+    /**
+     * @return the emails found by the query in "q", if there is one, or
+     *         else those for the recipient in the filter, if there is one
+     */
+    private Snapshot snapshot(final Map<String, String> parameters, final Filter filter) {
+
+        if (!parameters.containsKey("q")) {
+            return store.snapshot(filter.recipient);
+        }
+        final Snapshot found = store.search(parameters.get("q"));
+        if (found == null) {
+            throw new IllegalArgumentException("Search is off");
+        }
+        return found;
+    }
+
+    /**
+     * Sends server-sent events until the client goes away, with a comment
+     * every {@link #KEEPALIVE} milliseconds when there is nothing to say.
+     */
+    private void stream(final HttpExchange exchange, final Filter filter, final long after) throws IOException,
+        InterruptedException {
+
+        exchange.getResponseHeaders().set("Content-Type", STREAM + "; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        final OutputStream out = exchange.getResponseBody();
+        final Feed feed = store.getFeed();
+        long last = after;
+        while (RUNNING) {
+            final List<Event> events = feed.read(last, KEEPALIVE);
+            final StringBuilder text = new StringBuilder();
+            if (events.isEmpty()) {
+                text.append(":\n\n");
+            }
+            for (final Event event : events) {
+                if (filter.matches(event.getArrival(), event.getEnvelope())) {
+                    text.append("id: ").append(event.getSequence()).append("\nevent: message\ndata: {");
+                    event(text, event);
+                    text.append("}\n\n");
+                }
+                last = event.getSequence();
+            }
+            if (text.length() > 0) {
+                try {
+                    out.write(text.toString().getBytes(CHARSET));
+                    out.flush();
+                } catch (final IOException e) {
+                    // The client went away
+                    return;
+                }
+            }
+        }
+    }
+
+    private static String decode(final String text) {
+
+        try {
+            return URLDecoder.decode(text, CHARSET);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Emails saved before their subjects were kept have to be read for it,
+     * and may be removed by then.
+     *
+     * @return the email's envelope, or null if the email has gone
+     */
+    private static Envelope envelope(final Message message) throws BumsinkException {
+
+        try {
+            return message.readEnvelope();
+        } catch (final IOException e) {
+            // Removed since the snapshot was taken
+            return null;
+        }
+    }
+
+    private static void error(final HttpExchange exchange, final int status, final String message)
+        throws IOException {
+
+        final StringBuilder json = new StringBuilder("{\"error\":");
+        quote(json, message == null ? "" : message);
+        send(exchange, status, JSON, json.append('}').toString());
+    }
+
+    private static void event(final StringBuilder json, final Event event) {
+
+        json.append("\"id\":").append(event.getSequence()).append(',').append(event.getSummary());
+    }
+
+    /**
+     * @return the filter parameters, and those given
+     */
+    private static Set<String> parameters(final String... names) {
+
+        final Set<String> parameters = new HashSet<String>(Arrays.asList("recipient", "sender", "subject", "since",
+            "until"));
+        parameters.addAll(Arrays.asList(names));
+        return parameters;
+    }
+
+    private static Map<String, String> parameters(final String query, final Set<String> names) {
+
+        final Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (final String pair : query.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            final String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+            if (!names.contains(name)) {
+                // A typo must not turn a filtered delete into a delete all
+                throw new IllegalArgumentException("Unknown parameter: " + name);
+            }
+            parameters.put(name, equals < 0 ? "" : decode(pair.substring(equals + 1)));
+        }
+        return parameters;
+    }
+
+    private static void quote(final StringBuilder json, final String text) {
+
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final String type, final String body)
+        throws IOException {
+
+        final byte[] bytes = body.getBytes(CHARSET);
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Describes an email, without the braces around it.
+     *
+     * @param json
+     * @param uid
+     * @param arrival
+     * @param octets
+     * @param envelope with the subject known
+     */
+    static void summary(final StringBuilder json, final String uid, final long arrival, final long octets,
+        final Envelope envelope) {
+
+        json.append("\"uid\":");
+        quote(json, uid);
+        json.append(",\"arrival\":").append(arrival);
+        json.append(",\"octets\":").append(octets);
+        json.append(",\"sender\":");
+        quote(json, envelope.getSender());
+        json.append(",\"recipients\":[");
+        final String[] recipients = envelope.getRecipients();
+        for (int i = 0; i < recipients.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            quote(json, recipients[i]);
+        }
+        json.append("],\"subject\":");
+        quote(json, envelope.getSubject());
+    }
+
+    private static long time(final String value) {
+
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            try {
+                return Instant.parse(value).toEpochMilli();
+            } catch (final DateTimeParseException f) {
+                throw new IllegalArgumentException("Not a time: " + value);
+            }
+        }
+    }
+
+
+    /**
+     * Which emails a request is about.
+     */
+    private static class Filter {
+
+        private final String recipient;
+        private final String sender;
+        private final long since;
+        private final String subject;
+        private final long until;
+
+        private Filter(final Map<String, String> parameters) {
+
+            recipient = parameters.containsKey("recipient") ? Recipients.address(parameters.get("recipient")) : null;
+            sender = parameters.containsKey("sender") ? Recipients.address(parameters.get("sender")) : null;
+            subject = parameters.containsKey("subject") ? parameters.get("subject").toLowerCase() : null;
+            since = parameters.containsKey("since") ? time(parameters.get("since")) : Long.MIN_VALUE;
+            until = parameters.containsKey("until") ? time(parameters.get("until")) : Long.MAX_VALUE;
+        }
+
+        /**
+         * @param arrival
+         * @param envelope with the subject known
+         */
+        private boolean matches(final long arrival, final Envelope envelope) {
+
+            if (arrival < since || arrival >= until) {
+                return false;
+            }
+            if (recipient != null && !Arrays.asList(envelope.getRecipients()).contains(recipient)) {
+                return false;
+            }
+            if (sender != null && !sender.equals(envelope.getSender())) {
+                return false;
+            }
+            return subject == null || envelope.getSubject().toLowerCase().contains(subject);
+        }
+    }
+}
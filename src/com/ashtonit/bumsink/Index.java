@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * What the {@link Store} knows about each message, held in parallel arrays
+ * so STAT, LIST and UIDL never have to go near the file system. Slot i holds
+ * message number i + 1.
+ * <p>
+ * Changes are made under the index's lock and published as a new
+ * {@link Snapshot}, which readers pick up without locking. Appending only
+ * writes past the end of what existing snapshots can see; anything that
+ * moves messages around builds new arrays, so a snapshot never changes once
+ * it has been taken.
+ * <p>
+ * The slot holding each UID is kept as well, so a single message can be
+ * found without going through the lot.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Index {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] arrivals;
+    private Message[] messages;
+    private long[] octets;
+    private int size = 0;
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    private volatile Snapshot snapshot;
+    private long totalOctets = 0;
+    private String[] uids;
+
+    Index() {
+
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of messages to make room for up front
+     */
+    Index(final int capacity) {
+
+        arrivals = new long[capacity];
+        messages = new Message[capacity];
+        octets = new long[capacity];
+        uids = new String[capacity];
+        snapshot = new Snapshot(arrivals, messages, octets, uids, 0, 0);
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @param message
+     * @param uid
+     * @param octets the size of the message
+     * @param arrival when the message arrived, in milliseconds since the epoch
+     */
+    synchronized void add(final Message message, final String uid, final long octets, final long arrival) {
+
+        if (size == messages.length) {
+            grow();
+        }
+        this.arrivals[size] = arrival;
+        this.messages[size] = message;
+        this.octets[size] = octets;
+        this.uids[size] = uid;
+        slots.put(uid, size);
+        size++;
+        totalOctets += octets;
+        publish();
+    }
+
+    /**
+     * @param uid as the shard's storage knows it
+     * @return a snapshot of just the message with that UID, or null if
+     *         there isn't one
+     */
+    synchronized Snapshot find(final String uid) {
+
+        final Integer slot = slots.get(uid);
+        if (slot == null) {
+            return null;
+        }
+        return new Snapshot(new long[] { arrivals[slot] }, new Message[] { messages[slot] },
+            new long[] { octets[slot] }, new String[] { uid }, 1, octets[slot]);
+    }
+
+    /**
+     * Removes messages, closing up the gaps. Messages that are no longer in
+     * the index are ignored, so two sessions can delete the same message.
+     *
+     * @param doomed
+     * @return the messages that were actually removed
+     */
+    synchronized List<Message> remove(final Collection<Message> doomed) {
+
+        final List<Message> removed = new ArrayList<Message>();
+        if (doomed.isEmpty()) {
+            return removed;
+        }
+        final Set<Message> set = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+        set.addAll(doomed);
+        boolean found = false;
+        for (int i = 0; i < size && !found; i++) {
+            found = set.contains(messages[i]);
+        }
+        if (!found) {
+            // None of them are here, which is common when the store has
+            // several shards, so don't copy anything.
+            return removed;
+        }
+
+        final long[] newArrivals = new long[messages.length];
+        final Message[] newMessages = new Message[messages.length];
+        final long[] newOctets = new long[messages.length];
+        final String[] newUids = new String[messages.length];
+        int to = 0;
+        for (int from = 0; from < size; from++) {
+            if (set.contains(messages[from])) {
+                removed.add(messages[from]);
+                totalOctets -= octets[from];
+            } else {
+                newArrivals[to] = arrivals[from];
+                newMessages[to] = messages[from];
+                newOctets[to] = octets[from];
+                newUids[to] = uids[from];
+                to++;
+            }
+        }
+        arrivals = newArrivals;
+        messages = newMessages;
+        octets = newOctets;
+        uids = newUids;
+        size = to;
+        reslot();
+        publish();
+        return removed;
+    }
+
+    /**
+     * @return the index as it stands, without waiting for any change in
+     *         progress
+     */
+    Snapshot snapshot() {
+
+        return snapshot;
+    }
+
+    /**
+     * Puts the messages in order of arrival, keeping the order of any that
+     * arrived at the same time.
+     */
+    synchronized void sort() {
+
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(final Integer a, final Integer b) {
+
+                return Long.compare(arrivals[a], arrivals[b]);
+            }
+        });
+
+        final long[] newArrivals = new long[messages.length];
+        final Message[] newMessages = new Message[messages.length];
+        final long[] newOctets = new long[messages.length];
+        final String[] newUids = new String[messages.length];
+        for (int i = 0; i < size; i++) {
+            final int from = order[i];
+            newArrivals[i] = arrivals[from];
+            newMessages[i] = messages[from];
+            newOctets[i] = octets[from];
+            newUids[i] = uids[from];
+        }
+        arrivals = newArrivals;
+        messages = newMessages;
+        octets = newOctets;
+        uids = newUids;
+        reslot();
+        publish();
+    }
+
+    private void grow() {
+
+        final int capacity = messages.length * 2;
+        arrivals = copy(arrivals, capacity);
+        octets = copy(octets, capacity);
+
+        final Message[] newMessages = new Message[capacity];
+        System.arraycopy(messages, 0, newMessages, 0, size);
+        messages = newMessages;
+
+        final String[] newUids = new String[capacity];
+        System.arraycopy(uids, 0, newUids, 0, size);
+        uids = newUids;
+    }
+
+    private void publish() {
+
+        snapshot = new Snapshot(arrivals, messages, octets, uids, size, totalOctets);
+    }
+
+    private void reslot() {
+
+        slots.clear();
+        for (int i = 0; i < size; i++) {
+            slots.put(uids[i], i);
+        }
+    }
+
+    private static long[] copy(final long[] array, final int capacity) {
+
+        final long[] copy = new long[capacity];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+/**
+ * The line codec shared by both protocols. A connection owns one Line and
+ * reuses it for every line it reads: {@link #frame(byte[], int, int)} copies
+ * raw bytes in until a line terminator turns up, and the session then looks
+ * at the bytes in place. Nothing here allocates once the buffer has grown to
+ * the longest line seen, apart from {@link #toString()}.
+ * <p>
+ * Lines end at CR, LF or CRLF, as with
+ * {@link java.io.BufferedReader#readLine()}. Words are separated by runs of
+ * spaces and tabs.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Line {
+
+    private byte[] bytes = new byte[128];
+    private boolean complete = false;
+    private int length = 0;
+    private boolean skipLf = false;
+
+    /**
+     * Returns the byte at the given index.
+     *
+     * @param index
+     * @return the byte
+     */
+    byte byteAt(final int index) {
+
+        return bytes[index];
+    }
+
+    /**
+     * Returns the bytes of the line. Only the first {@link #length()} of
+     * them belong to it.
+     *
+     * @return the backing array
+     */
+    byte[] bytes() {
+
+        return bytes;
+    }
+
+    /**
+     * Copies bytes from the buffer until the line is complete or the
+     * buffer runs out. A complete line must be {@link #reset()} before the
+     * next one is framed.
+     *
+     * @param buffer
+     * @param offset
+     * @param limit
+     * @return the offset of the first byte not consumed
+     */
+    int frame(final byte[] buffer, final int offset, final int limit) {
+
+        int i = offset;
+        while (i < limit && !complete) {
+            final byte b = buffer[i++];
+            if (b == '\n' && skipLf) {
+                skipLf = false;
+            } else if (b == '\r' || b == '\n') {
+                skipLf = b == '\r';
+                complete = true;
+            } else {
+                skipLf = false;
+                if (length == bytes.length) {
+                    final byte[] bigger = new byte[bytes.length * 2];
+                    System.arraycopy(bytes, 0, bigger, 0, length);
+                    bytes = bigger;
+                }
+                bytes[length++] = b;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Parses a word as a decimal number, the same as
+     * {@link Integer#parseInt(String)} would.
+     *
+     * @param word the index of the word; the command itself is word 0
+     * @return the number
+     * @throws NumberFormatException if the line has no such word or it is not
+     *             a number
+     */
+    int intWord(final int word) {
+
+        final int start = wordStart(word);
+        if (start < 0) {
+            throw new NumberFormatException("No word " + word);
+        }
+        int i = start;
+        final boolean negative = bytes[i] == '-';
+        if (negative || bytes[i] == '+') {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (i < length && !isSpace(bytes[i])) {
+            final int digit = bytes[i++] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("For input string: \"" + word(word) + "\"");
+            }
+            value = value * 10 + digit;
+            digits++;
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (digits == 0 || value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new NumberFormatException("For input string: \"" + word(word) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * @param b
+     * @return true if the line is exactly that single byte
+     */
+    boolean is(final char b) {
+
+        return length == 1 && bytes[0] == b;
+    }
+
+    boolean isComplete() {
+
+        return complete;
+    }
+
+    int length() {
+
+        return length;
+    }
+
+    /**
+     * Empties the line, ready to frame the next one.
+     */
+    void reset() {
+
+        complete = false;
+        length = 0;
+    }
+
+    /**
+     * Steps over the LF of the CRLF that ended the last line, if it is
+     * next. Call this before taking anything from the buffer other than
+     * lines.
+     *
+     * @param buffer
+     * @param offset
+     * @param limit
+     * @return the offset of the first byte after the line terminator
+     */
+    int skipLf(final byte[] buffer, final int offset, final int limit) {
+
+        if (skipLf && offset < limit) {
+            skipLf = false;
+            if (buffer[offset] == '\n') {
+                return offset + 1;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Compares the start of the line with a verb, ignoring ASCII case.
+     *
+     * @param verb upper case ASCII
+     * @return true if the line starts with the verb
+     */
+    boolean startsWith(final byte[] verb) {
+
+        if (length < verb.length) {
+            return false;
+        }
+        for (int i = 0; i < verb.length; i++) {
+            if (upper(bytes[i]) != verb[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the line with the platform charset. This allocates, so keep it
+     * to logging and replies that echo the client.
+     *
+     * @see Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return new String(bytes, 0, length);
+    }
+
+    /**
+     * Returns a single word of the line as a string.
+     *
+     * @param word the index of the word; the command itself is word 0
+     * @return the word, or null if the line has no such word
+     */
+    String word(final int word) {
+
+        final int start = wordStart(word);
+        if (start < 0) {
+            return null;
+        }
+        int end = start;
+        while (end < length && !isSpace(bytes[end])) {
+            end++;
+        }
+        return new String(bytes, start, end - start);
+    }
+
+    /**
+     * @return the number of words in the line
+     */
+    int words() {
+
+        int count = 0;
+        boolean inWord = false;
+        for (int i = 0; i < length; i++) {
+            final boolean space = isSpace(bytes[i]);
+            if (!space && !inWord) {
+                count++;
+            }
+            inWord = !space;
+        }
+        return count;
+    }
+
+    private int wordStart(final int word) {
+
+        int count = -1;
+        boolean inWord = false;
+        for (int i = 0; i < length; i++) {
+            final boolean space = isSpace(bytes[i]);
+            if (!space && !inWord && ++count == word) {
+                return i;
+            }
+            inWord = !space;
+        }
+        return -1;
+    }
+
+    static boolean isSpace(final byte b) {
+
+        return b == ' ' || b == '\t';
+    }
+
+    static byte upper(final byte b) {
+
+        return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+}
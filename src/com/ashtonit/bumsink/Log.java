@@ -0,0 +1,294 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Writes log lines on a thread of its own, so logging never waits for
+ * stdout or stderr. Lines go through a ring of entries shared by any number
+ * of writers and drained by this thread alone, which sleeps while the ring
+ * is empty. A writer claims a slot with one compare-and-set and never
+ * blocks: if the ring is full the line is dropped and counted, and the
+ * count is logged once there is room.
+ * <p>
+ * Text that may change after the call, like a {@link Line}, is copied into
+ * the entry's own buffer, up to {@link #TEXT_SIZE} characters. The buffer is
+ * only allocated, or grown, when a line doesn't fit, so once the ring is
+ * warm a debug line costs no allocation on the session's thread.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Log extends Thread {
+
+    static final int DEBUG = 2;
+    static final int ERROR = 0;
+    static final int INFO = 1;
+
+    private static final long IDLE = 1000000;
+    private static final String NEWLINE = System.lineSeparator();
+    private static final int TEXT_SIZE = 1024;
+
+    private final LongAdder dropped = new LongAdder();
+    private final Entry[] entries;
+    private volatile long head = 0;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private volatile boolean sleeping = false;
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param threadGroup
+     * @param size the most lines waiting to be written, rounded up to a
+     *            power of two
+     */
+    Log(final ThreadGroup threadGroup, final int size) {
+
+        super(threadGroup, "Log");
+        final int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1);
+        entries = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        setDaemon(true);
+    }
+
+    /**
+     * Waits for the lines already logged to be written, for up to a
+     * second.
+     */
+    void flush() {
+
+        final long last = tail.get();
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (head < last && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(IDLE);
+        }
+    }
+
+    /**
+     * @return the lines dropped because the ring was full
+     */
+    long getDropped() {
+
+        return dropped.sum();
+    }
+
+    /**
+     * Logs a line.
+     *
+     * @param level
+     * @param prefix written before the text, or null
+     * @param message kept as it is, or null
+     * @param text copied now, if there is no message
+     */
+    void log(final int level, final String prefix, final String message, final CharSequence text) {
+
+        final long position = claim();
+        if (position < 0) {
+            return;
+        }
+        final Entry entry = entries[(int) position & mask];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.thread = Thread.currentThread().getName();
+        entry.prefix = prefix;
+        entry.message = message;
+        entry.length = 0;
+        if (message == null) {
+            entry.copy(text);
+        }
+        publish(position);
+    }
+
+    /**
+     * Logs a line read from a client.
+     *
+     * @param level
+     * @param prefix
+     * @param line copied now
+     */
+    void log(final int level, final String prefix, final Line line) {
+
+        final long position = claim();
+        if (position < 0) {
+            return;
+        }
+        final Entry entry = entries[(int) position & mask];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.thread = Thread.currentThread().getName();
+        entry.prefix = prefix;
+        entry.message = null;
+        entry.length = 0;
+        entry.copy(line);
+        publish(position);
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        final StringBuilder out = new StringBuilder();
+        final StringBuilder err = new StringBuilder();
+        long reported = 0;
+        while (true) {
+            long next = head;
+            while (out.length() < TEXT_SIZE * 16 && err.length() < TEXT_SIZE * 16
+                && sequences.get((int) next & mask) == next + 1) {
+                final Entry entry = entries[(int) next & mask];
+                entry.format(entry.level == ERROR ? err : out);
+                entry.clear();
+                sequences.set((int) next & mask, next + entries.length);
+                head = ++next;
+            }
+            final long lost = dropped.sum();
+            if (lost > reported) {
+                err.append(System.currentTimeMillis()).append(' ').append(getName()).append(" Dropped ")
+                    .append(lost - reported).append(" log lines.").append(NEWLINE);
+                reported = lost;
+            }
+            if (out.length() > 0) {
+                write(System.out, out);
+            }
+            if (err.length() > 0) {
+                write(System.err, err);
+            }
+            if (sequences.get((int) next & mask) != next + 1) {
+                // A writer publishes then checks sleeping; this sets
+                // sleeping then checks again, so one of them sees the other.
+                sleeping = true;
+                if (sequences.get((int) next & mask) != next + 1) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    /**
+     * @return the position of the slot claimed, or -1 if the ring is full
+     */
+    private long claim() {
+
+        while (true) {
+            final long position = tail.get();
+            final long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (sequence < position) {
+                dropped.increment();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Hands a filled slot to this thread, waking it if it is asleep.
+     */
+    private void publish(final long position) {
+
+        sequences.set((int) position & mask, position + 1);
+        if (sleeping) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    private static void write(final PrintStream stream, final StringBuilder text) {
+
+        stream.print(text);
+        stream.flush();
+        text.setLength(0);
+    }
+
+
+    /**
+     * A line waiting to be written.
+     */
+    private static class Entry {
+
+        private int length;
+        private int level;
+        private String message;
+        private String prefix;
+        private char[] text;
+        private String thread;
+        private long time;
+
+        private void clear() {
+
+            message = null;
+            prefix = null;
+            thread = null;
+        }
+
+        private void copy(final CharSequence source) {
+
+            length = Math.min(source.length(), TEXT_SIZE);
+            fit();
+            for (int i = 0; i < length; i++) {
+                text[i] = source.charAt(i);
+            }
+        }
+
+        private void copy(final Line line) {
+
+            length = Math.min(line.length(), TEXT_SIZE);
+            fit();
+            for (int i = 0; i < length; i++) {
+                text[i] = (char) (line.byteAt(i) & 0xff);
+            }
+        }
+
+        /**
+         * Makes sure the buffer holds {@link #length} characters, growing it
+         * a power of two at a time so it settles quickly.
+         */
+        private void fit() {
+
+            if (text == null || text.length < length) {
+                text = new char[Math.min(TEXT_SIZE, Integer.highestOneBit(Math.max(64, length) * 2 - 1))];
+            }
+        }
+
+        private void format(final StringBuilder out) {
+
+            out.append(time).append(' ').append(thread).append(' ');
+            if (prefix != null) {
+                out.append(prefix);
+            }
+            if (message != null) {
+                out.append(message);
+            } else {
+                out.append(text, 0, length);
+            }
+            out.append(NEWLINE);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * One POP3 session's view of the {@link Store}: a {@link Snapshot} taken at
+ * login, plus the messages the session has marked as deleted. Emails that
+ * arrive afterwards don't show up and message numbers never shift, as
+ * RFC 1939 expects. Only used by the session that opened it.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Mailbox {
+
+    private final BitSet deleted = new BitSet();
+    private int deletedCount = 0;
+    private long deletedOctets = 0;
+    private final Snapshot snapshot;
+
+    /**
+     * @param snapshot
+     */
+    Mailbox(final Snapshot snapshot) {
+
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Marks a message as deleted. It is removed from the store at QUIT.
+     *
+     * @param msgNum
+     */
+    void delete(final int msgNum) {
+
+        if (exists(msgNum)) {
+            deleted.set(msgNum - 1);
+            deletedCount++;
+            deletedOctets += snapshot.getOctets(msgNum - 1);
+        }
+    }
+
+    /**
+     * @param msgNum
+     * @return true if the message number is in range and not marked deleted
+     */
+    boolean exists(final int msgNum) {
+
+        return msgNum >= 1 && msgNum <= snapshot.size() && !deleted.get(msgNum - 1);
+    }
+
+    /**
+     * @return the number of messages not marked deleted
+     */
+    int getCount() {
+
+        return snapshot.size() - deletedCount;
+    }
+
+    /**
+     * @return the messages marked deleted
+     */
+    List<Message> getDeleted() {
+
+        final List<Message> messages = new ArrayList<Message>(deletedCount);
+        for (int i = deleted.nextSetBit(0); i >= 0; i = deleted.nextSetBit(i + 1)) {
+            messages.add(snapshot.getMessage(i));
+        }
+        return messages;
+    }
+
+    /**
+     * @param msgNum
+     * @return the size of the headers of a message, including the blank line
+     *         that ends them
+     * @throws BumsinkException
+     * @throws IOException
+     */
+    long getHeaderOctets(final int msgNum) throws BumsinkException, IOException {
+
+        return getMessage(msgNum).readHeaderOctets();
+    }
+
+    Message getMessage(final int msgNum) throws BumsinkException {
+
+        try {
+            return snapshot.getMessage(msgNum - 1);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new BumsinkException("No message found", e);
+        }
+    }
+
+    /**
+     * @return the size of the messages not marked deleted
+     */
+    long getOctets() {
+
+        return snapshot.getTotalOctets() - deletedOctets;
+    }
+
+    long getOctets(final int msgNum) throws BumsinkException {
+
+        try {
+            return snapshot.getOctets(msgNum - 1);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new BumsinkException("No message found", e);
+        }
+    }
+
+    String getUid(final int msgNum) throws BumsinkException {
+
+        try {
+            return snapshot.getUid(msgNum - 1);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new BumsinkException("No message found", e);
+        }
+    }
+
+    /**
+     * Unmarks every message marked as deleted.
+     */
+    void reset() {
+
+        deleted.clear();
+        deletedCount = 0;
+        deletedOctets = 0;
+    }
+
+    /**
+     * @return the highest message number, deleted or not
+     */
+    int size() {
+
+        return snapshot.size();
+    }
+}
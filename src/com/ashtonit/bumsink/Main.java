@@ -19,8 +19,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -32,28 +33,102 @@ import java.util.Properties;
 public class Main {
 
     static final ThreadGroup ALL_THREADS = new ThreadGroup("BUMSink");
+    static long CACHE_AGE = 60000;
+    static long CACHE_SIZE = 16777216;
+    static int COMMIT_BATCH = 256;
+    static long COMPACT_INTERVAL = 60000;
+    static int COMPACT_THRESHOLD = 50;
+    static boolean COMPRESSION = false;
+    static int COMPRESSION_LEVEL = 6;
     static boolean DEBUG = false;
+    static final String DURABILITY_FLUSH = "flush";
+    static final String DURABILITY_FSYNC = "fsync";
+    static final String DURABILITY_NONE = "none";
+    static String DURABILITY = DURABILITY_FLUSH;
+    static final String ENGINE_NIO = "nio";
+    static final String ENGINE_THREAD = "thread";
+    static final String ENGINE_VIRTUAL = "virtual";
+    static String ENGINE = ENGINE_THREAD;
     static final String EOL = "\r\n";
+    static String HTTP_HOST = "localhost";
+    static int HTTP_PORT = 0;
+    static int LOG_BUFFER = 4096;
+    static String LOG_LEVEL = "info";
+    static int LOG_SAMPLE = 1;
     static String MAIL_DIR = "mail";
+    static int NIO_THREADS = Runtime.getRuntime().availableProcessors();
     static int POP_BACKLOG = 0;
+    static boolean POP_CATCHALL = true;
     static String POP_HOST = "localhost";
     static int POP_PORT = 110;
+    static int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+    static long RETENTION_AGE = 0;
+    static long RETENTION_BYTES = 0;
+    static int RETENTION_COUNT = 0;
+    static long RETENTION_INTERVAL = 10000;
     static boolean RUNNING = true;
+    static boolean SEARCH = false;
+    static int SEARCH_BODY = 4096;
+    static long SEGMENT_SIZE = 67108864;
     static int SMTP_BACKLOG = 0;
     static String SMTP_HOST = "localhost";
     static int SMTP_PORT = 25;
+    static long SMTP_SIZE = 0;
+    static long SNAPSHOT_INTERVAL = 300000;
     static int SO_TIMEOUT = 10000;
+    static int SPOOL_THRESHOLD = 65536;
+    static final String STORAGE_DEDUP = "dedup";
+    static final String STORAGE_FILE = "file";
+    static final String STORAGE_SEGMENT = "segment";
+    static String STORAGE = STORAGE_FILE;
     static final String VERSION = "0.1";
+    static int VIRTUAL_CARRIERS = 0;
+    static int WRITER_BACKLOG = 1024;
 
+    private static final String CACHE_AGE_KEY = "cache.age";
+    private static final String CACHE_SIZE_KEY = "cache.size";
+    private static final String COMMIT_BATCH_KEY = "commit.batch";
+    private static final String COMPACT_INTERVAL_KEY = "compact.interval";
+    private static final String COMPACT_THRESHOLD_KEY = "compact.threshold";
+    private static final String COMPRESSION_KEY = "compression";
+    private static final String COMPRESSION_LEVEL_KEY = "compression.level";
     private static final String DEBUG_KEY = "debug";
+    private static final String DURABILITY_KEY = "durability";
+    private static final String ENGINE_KEY = "engine";
+    private static final String HTTP_HOST_KEY = "http.host";
+    private static final String HTTP_PORT_KEY = "http.port";
+    private static final String LOG_BUFFER_KEY = "log.buffer";
+    private static final String LOG_LEVEL_KEY = "log.level";
+    private static final String LOG_SAMPLE_KEY = "log.sample";
     private static final String MAIL_DIR_KEY = "mail.dir";
+    private static final String NIO_THREADS_KEY = "nio.threads";
     private static final String POP_BACKLOG_KEY = "pop.backlog";
+    private static final String POP_CATCHALL_KEY = "pop.catchall";
     private static final String POP_HOST_KEY = "pop.host";
     private static final String POP_PORT_KEY = "pop.port";
+    private static final String RECOVERY_THREADS_KEY = "recovery.threads";
+    private static final String RETENTION_AGE_KEY = "retention.age";
+    private static final String RETENTION_BYTES_KEY = "retention.bytes";
+    private static final String RETENTION_COUNT_KEY = "retention.count";
+    private static final String RETENTION_INTERVAL_KEY = "retention.interval";
+    private static final String SEARCH_KEY = "search";
+    private static final String SEARCH_BODY_KEY = "search.body";
+    private static final String SEGMENT_SIZE_KEY = "segment.size";
     private static final String SMTP_BACKLOG_KEY = "smtp.backlog";
     private static final String SMTP_HOST_KEY = "smtp.host";
     private static final String SMTP_PORT_KEY = "smtp.port";
+    private static final String SMTP_SIZE_KEY = "smtp.size";
+    private static final String SNAPSHOT_INTERVAL_KEY = "snapshot.interval";
     private static final String SO_TIMEOUT_KEY = "so.timeout";
+    private static final String SPOOL_THRESHOLD_KEY = "spool.threshold";
+    private static final String STORAGE_KEY = "storage";
+    private static final String VIRTUAL_CARRIERS_KEY = "virtual.carriers";
+    private static final String WRITER_BACKLOG_KEY = "writer.backlog";
+    private static final String[] LEVELS = { "error", "info", "debug" };
+    private static final AtomicLong SESSIONS = new AtomicLong();
+
+    private static int level = Log.INFO;
+    private static Log log;
 
     /**
      * @param args
@@ -67,19 +142,96 @@ public class Main {
             System.out.println("Usage: java -jar bumsink.jar bumsink.properties");
             System.exit(0);
         }
+        log = new Log(ALL_THREADS, LOG_BUFFER);
+        log.start();
+        // SMTP is up while the store is still loading; POP3 has to wait for
+        // a complete mailbox.
+        final Store store = Store.getInstance();
+        Metrics.register(store);
         new SmtpServer(ALL_THREADS).start();
+        try {
+            store.awaitRecovery();
+        } catch (final BumsinkException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
         new PopServer(ALL_THREADS).start();
+        if (HTTP_PORT > 0) {
+            new HttpApi().start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("Shutdown") {
+
+            public void run() {
+
+                store.shutdown();
+                try {
+                    store.checkpoint();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+                if (store.getCache() != null) {
+                    info(store.getCache().toString());
+                }
+                log.flush();
+            }
+        });
         info("Bumsink started.");
     }
 
+    /**
+     * Logs a line a client sent, if debugging.
+     *
+     * @param prefix
+     * @param line
+     */
+    static void debug(final String prefix, final Line line) {
+
+        if (level >= Log.DEBUG && log != null) {
+            log.log(Log.DEBUG, prefix, line);
+        }
+    }
+
+    /**
+     * Logs text sent to a client, if debugging.
+     *
+     * @param prefix
+     * @param text copied before this returns
+     */
+    static void debug(final String prefix, final CharSequence text) {
+
+        if (level >= Log.DEBUG && log != null) {
+            log.log(Log.DEBUG, prefix, null, text);
+        }
+    }
+
     static void err(final String message) {
 
-        log(System.err, message);
+        log(Log.ERROR, message);
+    }
+
+    /**
+     * @return the log lines dropped because they came faster than they
+     *         could be written
+     */
+    static long getDroppedLogLines() {
+
+        return log == null ? 0 : log.getDropped();
     }
 
     static void info(final String message) {
 
-        log(System.out, message);
+        log(Log.INFO, message);
+    }
+
+    /**
+     * Decides whether a new session logs what it reads and writes: one in
+     * every {@link #LOG_SAMPLE} sessions, if debugging.
+     *
+     * @return true if it does
+     */
+    static boolean sampleSession() {
+
+        return level >= Log.DEBUG && SESSIONS.getAndIncrement() % LOG_SAMPLE == 0;
     }
 
     private static void loadProperties(final String filename) throws BumsinkException {
@@ -102,29 +254,162 @@ public class Main {
             final FileInputStream inStream = new FileInputStream(file);
             properties.load(inStream);
 
+            CACHE_AGE = Long.parseLong(properties.getProperty(CACHE_AGE_KEY, Long.toString(CACHE_AGE)));
+            CACHE_SIZE = Long.parseLong(properties.getProperty(CACHE_SIZE_KEY, Long.toString(CACHE_SIZE)));
+            COMMIT_BATCH = Integer.parseInt(properties.getProperty(COMMIT_BATCH_KEY, Integer.toString(COMMIT_BATCH)));
+            COMPACT_INTERVAL = Long.parseLong(properties.getProperty(COMPACT_INTERVAL_KEY,
+                Long.toString(COMPACT_INTERVAL)));
+            COMPACT_THRESHOLD = Integer.parseInt(properties.getProperty(COMPACT_THRESHOLD_KEY,
+                Integer.toString(COMPACT_THRESHOLD)));
+            COMPRESSION = Boolean.valueOf(properties.getProperty(COMPRESSION_KEY, Boolean.toString(COMPRESSION)));
+            COMPRESSION_LEVEL = Integer.parseInt(properties.getProperty(COMPRESSION_LEVEL_KEY,
+                Integer.toString(COMPRESSION_LEVEL)));
             DEBUG = Boolean.valueOf(properties.getProperty(DEBUG_KEY, Boolean.toString(DEBUG)));
+            DURABILITY = properties.getProperty(DURABILITY_KEY, DURABILITY);
+            ENGINE = properties.getProperty(ENGINE_KEY, ENGINE);
+            HTTP_HOST = properties.getProperty(HTTP_HOST_KEY, HTTP_HOST);
+            HTTP_PORT = Integer.parseInt(properties.getProperty(HTTP_PORT_KEY, Integer.toString(HTTP_PORT)));
+            LOG_BUFFER = Integer.parseInt(properties.getProperty(LOG_BUFFER_KEY, Integer.toString(LOG_BUFFER)));
+            LOG_LEVEL = properties.getProperty(LOG_LEVEL_KEY, LOG_LEVEL);
+            LOG_SAMPLE = Integer.parseInt(properties.getProperty(LOG_SAMPLE_KEY, Integer.toString(LOG_SAMPLE)));
             MAIL_DIR = properties.getProperty(MAIL_DIR_KEY, MAIL_DIR);
+            NIO_THREADS = Integer.parseInt(properties.getProperty(NIO_THREADS_KEY, Integer.toString(NIO_THREADS)));
             POP_BACKLOG = Integer.parseInt(properties.getProperty(POP_BACKLOG_KEY, Integer.toString(POP_BACKLOG)));
+            POP_CATCHALL = Boolean.valueOf(properties.getProperty(POP_CATCHALL_KEY, Boolean.toString(POP_CATCHALL)));
             POP_HOST = properties.getProperty(POP_HOST_KEY, POP_HOST);
             POP_PORT = Integer.parseInt(properties.getProperty(POP_PORT_KEY, Integer.toString(POP_PORT)));
+            RECOVERY_THREADS = Integer.parseInt(properties.getProperty(RECOVERY_THREADS_KEY,
+                Integer.toString(RECOVERY_THREADS)));
+            RETENTION_AGE = Long.parseLong(properties.getProperty(RETENTION_AGE_KEY, Long.toString(RETENTION_AGE)));
+            RETENTION_BYTES = Long.parseLong(properties.getProperty(RETENTION_BYTES_KEY,
+                Long.toString(RETENTION_BYTES)));
+            RETENTION_COUNT = Integer.parseInt(properties.getProperty(RETENTION_COUNT_KEY,
+                Integer.toString(RETENTION_COUNT)));
+            RETENTION_INTERVAL = Long.parseLong(properties.getProperty(RETENTION_INTERVAL_KEY,
+                Long.toString(RETENTION_INTERVAL)));
+            SEARCH = Boolean.valueOf(properties.getProperty(SEARCH_KEY, Boolean.toString(SEARCH)));
+            SEARCH_BODY = Integer.parseInt(properties.getProperty(SEARCH_BODY_KEY, Integer.toString(SEARCH_BODY)));
+            SEGMENT_SIZE = Long.parseLong(properties.getProperty(SEGMENT_SIZE_KEY, Long.toString(SEGMENT_SIZE)));
             SMTP_BACKLOG = Integer.parseInt(properties.getProperty(SMTP_BACKLOG_KEY, Integer.toString(SMTP_BACKLOG)));
             SMTP_HOST = properties.getProperty(SMTP_HOST_KEY, SMTP_HOST);
             SMTP_PORT = Integer.parseInt(properties.getProperty(SMTP_PORT_KEY, Integer.toString(SMTP_PORT)));
+            SMTP_SIZE = Long.parseLong(properties.getProperty(SMTP_SIZE_KEY, Long.toString(SMTP_SIZE)));
+            SNAPSHOT_INTERVAL = Long.parseLong(properties.getProperty(SNAPSHOT_INTERVAL_KEY,
+                Long.toString(SNAPSHOT_INTERVAL)));
             SO_TIMEOUT = Integer.parseInt(properties.getProperty(SO_TIMEOUT_KEY, Integer.toString(SO_TIMEOUT)));
+            SPOOL_THRESHOLD = Integer.parseInt(properties.getProperty(SPOOL_THRESHOLD_KEY,
+                Integer.toString(SPOOL_THRESHOLD)));
+            STORAGE = properties.getProperty(STORAGE_KEY, STORAGE);
+            VIRTUAL_CARRIERS = Integer.parseInt(properties.getProperty(VIRTUAL_CARRIERS_KEY,
+                Integer.toString(VIRTUAL_CARRIERS)));
+            WRITER_BACKLOG = Integer.parseInt(properties.getProperty(WRITER_BACKLOG_KEY,
+                Integer.toString(WRITER_BACKLOG)));
         } catch (final FileNotFoundException e) {
             throw new BumsinkException(e);
         } catch (final IOException e) {
             throw new BumsinkException(e);
         }
+
+        if (!ENGINE_THREAD.equals(ENGINE) && !ENGINE_NIO.equals(ENGINE) && !ENGINE_VIRTUAL.equals(ENGINE)) {
+            throw new BumsinkException("Unknown engine: " + ENGINE);
+        }
+        if (NIO_THREADS < 1) {
+            throw new BumsinkException("nio.threads must be at least 1");
+        }
+        if (!STORAGE_FILE.equals(STORAGE) && !STORAGE_SEGMENT.equals(STORAGE) && !STORAGE_DEDUP.equals(STORAGE)) {
+            throw new BumsinkException("Unknown storage: " + STORAGE);
+        }
+        if (!DURABILITY_NONE.equals(DURABILITY) && !DURABILITY_FLUSH.equals(DURABILITY)
+            && !DURABILITY_FSYNC.equals(DURABILITY)) {
+            throw new BumsinkException("Unknown durability: " + DURABILITY);
+        }
+        if (COMMIT_BATCH < 1) {
+            throw new BumsinkException("commit.batch must be at least 1");
+        }
+        if (WRITER_BACKLOG < 0) {
+            throw new BumsinkException("writer.backlog must not be negative");
+        }
+        if (SEGMENT_SIZE < 1) {
+            throw new BumsinkException("segment.size must be at least 1");
+        }
+        if (RECOVERY_THREADS < 1) {
+            throw new BumsinkException("recovery.threads must be at least 1");
+        }
+        if (SNAPSHOT_INTERVAL < 1) {
+            throw new BumsinkException("snapshot.interval must be at least 1");
+        }
+        if (COMPACT_INTERVAL < 1) {
+            throw new BumsinkException("compact.interval must be at least 1");
+        }
+        if (COMPACT_THRESHOLD < 1 || COMPACT_THRESHOLD > 100) {
+            throw new BumsinkException("compact.threshold must be between 1 and 100");
+        }
+        if (COMPRESSION_LEVEL < 0 || COMPRESSION_LEVEL > 9) {
+            throw new BumsinkException("compression.level must be between 0 and 9");
+        }
+        if (COMPRESSION && STORAGE_SEGMENT.equals(STORAGE)) {
+            throw new BumsinkException("compression is not supported with segment storage");
+        }
+        if (RETENTION_AGE < 0 || RETENTION_BYTES < 0 || RETENTION_COUNT < 0) {
+            throw new BumsinkException("retention limits must not be negative");
+        }
+        if (RETENTION_INTERVAL < 1) {
+            throw new BumsinkException("retention.interval must be at least 1");
+        }
+        if (CACHE_SIZE < 0) {
+            throw new BumsinkException("cache.size must not be negative");
+        }
+        if (CACHE_AGE < 1) {
+            throw new BumsinkException("cache.age must be at least 1");
+        }
+        if (HTTP_PORT < 0) {
+            throw new BumsinkException("http.port must not be negative");
+        }
+        level = Arrays.asList(LEVELS).indexOf(LOG_LEVEL);
+        if (level < 0) {
+            throw new BumsinkException("Unknown log.level: " + LOG_LEVEL);
+        }
+        if (DEBUG) {
+            level = Log.DEBUG;
+        }
+        if (LOG_BUFFER < 1 || LOG_BUFFER > 1 << 20) {
+            throw new BumsinkException("log.buffer must be between 1 and " + (1 << 20));
+        }
+        if (LOG_SAMPLE < 1) {
+            throw new BumsinkException("log.sample must be at least 1");
+        }
+        if (SEARCH_BODY < 0) {
+            throw new BumsinkException("search.body must not be negative");
+        }
+        if (SMTP_SIZE < 0) {
+            throw new BumsinkException("smtp.size must not be negative");
+        }
+        if (VIRTUAL_CARRIERS > 0) {
+            // Read once by the JDK when the first virtual thread is created.
+            final String carriers = Integer.toString(VIRTUAL_CARRIERS);
+            System.setProperty("jdk.virtualThreadScheduler.parallelism", carriers);
+            System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", carriers);
+        }
     }
 
-    private static void log(final PrintStream writer, final String message) {
+    /**
+     * Hands a line to the {@link Log} thread, or writes it straight out if
+     * that hasn't started yet.
+     */
+    private static void log(final int level, final String message) {
 
+        if (level > Main.level) {
+            return;
+        }
+        if (log != null) {
+            log.log(level, null, message, null);
+            return;
+        }
         final StringBuilder builder = new StringBuilder(Long.toString(System.currentTimeMillis()));
         builder.append(' ');
         builder.append(Thread.currentThread().getName());
         builder.append(' ');
         builder.append(message);
-        writer.println(builder.toString());
+        (level == Log.ERROR ? System.err : System.out).println(builder.toString());
     }
 }
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+/**
+ * Every shard's {@link Snapshot} as one, in order of arrival, with emails
+ * that arrived at the same time in the order of their shards. The size and
+ * total are added up straight away, but the shards are only merged as far
+ * as the slots that have been asked for, a chunk at a time. Counting the
+ * store never merges anything, and the reaper only pays for the oldest
+ * emails.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class MergedSnapshot extends Snapshot {
+
+    private static final int CHUNK = 1024;
+
+    private long[] arrivals;
+    private final int[] heads;
+    private volatile int merged = 0;
+    private Message[] messages;
+    private long[] octets;
+    private final Snapshot[] parts;
+    private final Shard[] shards;
+    private String[] uids;
+
+    /**
+     * @param parts each shard's snapshot, already in order of arrival
+     * @param shards the shards they came from, in the same order
+     */
+    MergedSnapshot(final Snapshot[] parts, final Shard[] shards) {
+
+        super(null, null, null, null, size(parts), totalOctets(parts));
+        this.parts = parts;
+        this.shards = shards;
+        heads = new int[parts.length];
+    }
+
+    /**
+     * @see Snapshot#getArrival(int)
+     */
+    @Override
+    long getArrival(final int slot) {
+
+        merge(slot);
+        return arrivals[slot];
+    }
+
+    /**
+     * @see Snapshot#getMessage(int)
+     */
+    @Override
+    Message getMessage(final int slot) {
+
+        merge(slot);
+        return messages[slot];
+    }
+
+    /**
+     * @see Snapshot#getOctets(int)
+     */
+    @Override
+    long getOctets(final int slot) {
+
+        merge(slot);
+        return octets[slot];
+    }
+
+    /**
+     * @see Snapshot#getUid(int)
+     */
+    @Override
+    String getUid(final int slot) {
+
+        merge(slot);
+        return uids[slot];
+    }
+
+    /**
+     * @param parts each shard's snapshot
+     * @return true if this was merged from exactly those snapshots
+     */
+    boolean isOf(final Snapshot[] parts) {
+
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != this.parts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure the slot has been merged. Slots already merged are read
+     * without locking; the arrays are only ever written past the end of
+     * them.
+     */
+    private void merge(final int slot) {
+
+        check(slot);
+        if (slot < merged) {
+            return;
+        }
+        synchronized (this) {
+            if (arrivals == null) {
+                arrivals = new long[size()];
+                messages = new Message[size()];
+                octets = new long[size()];
+                uids = new String[size()];
+            }
+            final int end = Math.min(size(), Math.max(slot + 1, merged + CHUNK));
+            for (int i = merged; i < end; i++) {
+                int from = -1;
+                for (int p = 0; p < parts.length; p++) {
+                    if (heads[p] < parts[p].size()
+                        && (from < 0 || parts[p].getArrival(heads[p]) < parts[from].getArrival(heads[from]))) {
+                        from = p;
+                    }
+                }
+                final int at = heads[from]++;
+                arrivals[i] = parts[from].getArrival(at);
+                messages[i] = parts[from].getMessage(at);
+                octets[i] = parts[from].getOctets(at);
+                uids[i] = shards[from].getUid(parts[from].getUid(at));
+            }
+            if (end > merged) {
+                merged = end;
+            }
+        }
+    }
+
+    private static int size(final Snapshot[] parts) {
+
+        int size = 0;
+        for (final Snapshot part : parts) {
+            size += part.size();
+        }
+        return size;
+    }
+
+    private static long totalOctets(final Snapshot[] parts) {
+
+        long totalOctets = 0;
+        for (final Snapshot part : parts) {
+            totalOctets += part.getTotalOctets();
+        }
+        return totalOctets;
+    }
+}
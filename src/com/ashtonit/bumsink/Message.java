@@ -15,108 +15,314 @@
  */
 package com.ashtonit.bumsink;
 
-import static com.ashtonit.bumsink.Main.EOL;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 
 
 /**
+ * An email in the {@link Store}. How it is kept on disk is up to the
+ * {@link Storage} engine that saved it.
+ *
  * @author Bruce Ashton
  * @date 2013-11-10
  */
-class Message {
+abstract class Message {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_SUBJECT = 4096;
+    private static final String SUBJECT = "Subject:";
 
-    private boolean deleted;
-    private final File file;
+    private volatile Envelope envelope = Envelope.NONE;
+    private volatile long headerOctets = -1;
+
+    /**
+     * Opens the message for sending with
+     * {@link Connection#send(FileChannel, long, long)}. The channel is
+     * positioned at the first byte of the message, which is held exactly as it
+     * arrived on the wire, so the next {@link #getLength()} bytes are what
+     * RETR sends. Not for compressed messages.
+     *
+     * @return a channel the caller must close
+     * @throws IOException
+     * @throws BumsinkException
+     */
+    abstract FileChannel getChannel() throws IOException, BumsinkException;
 
     /**
-     * @param file
+     * @return the envelope the message was delivered with
      */
-    Message(final File file) {
+    Envelope getEnvelope() {
 
-        this.file = file;
+        return envelope;
     }
 
-    long getOctets() throws BumsinkException {
+    /**
+     * @return the size of the message in octets
+     */
+    abstract long getLength();
 
-        if (file == null) {
-            throw new BumsinkException("No file found");
+    /**
+     * @return the octets up to and including the blank line that ends the
+     *         headers, or -1 if not yet known
+     */
+    long getHeaderOctets() {
+
+        return headerOctets;
+    }
+
+    /**
+     * Opens the message for reading, decompressing it if need be. The first
+     * {@link #getLength()} bytes read are what RETR sends.
+     *
+     * @return a stream the caller must close
+     * @throws IOException
+     * @throws BumsinkException
+     */
+    InputStream getStream() throws IOException, BumsinkException {
+
+        return Channels.newInputStream(getChannel());
+    }
+
+    /**
+     * @return true if the message has to be read with {@link #getStream()}
+     *         rather than {@link #getChannel()}
+     */
+    boolean isCompressed() {
+
+        return false;
+    }
+
+    /**
+     * Removes the message from disk for good.
+     */
+    abstract void purge();
+
+    /**
+     * Only an email saved before subjects were kept in the envelope has to
+     * be read, and then only once.
+     *
+     * @return the envelope, with the subject read from the headers if it
+     *         wasn't known
+     * @throws IOException
+     * @throws BumsinkException
+     */
+    Envelope readEnvelope() throws IOException, BumsinkException {
+
+        final Envelope known = envelope;
+        if (known.getSubject() != null) {
+            return known;
         }
-        return file.length();
+        final InputStream in = getStream();
+        try {
+            envelope = new Envelope(known.getSender(), known.getRecipients(), readSubject(in, getLength()));
+        } finally {
+            in.close();
+        }
+        return envelope;
     }
 
-    Reader getReader() throws IOException, BumsinkException {
+    /**
+     * Scans the message for the blank line that ends its headers, unless that
+     * is already known.
+     *
+     * @return the octets up to and including the blank line, or the size of
+     *         the whole message if there isn't one
+     * @throws IOException
+     * @throws BumsinkException
+     */
+    long readHeaderOctets() throws IOException, BumsinkException {
 
-        if (file == null) {
-            throw new BumsinkException("No file found");
+        if (headerOctets < 0) {
+            headerOctets = scan(0, -1);
         }
-        return new FileReader(file);
+        return headerOctets;
     }
 
-    String getTop(final int lines) throws BumsinkException {
+    /**
+     * Works out how much of the message TOP sends: the headers and the given
+     * number of lines of the body.
+     *
+     * @param headerOctets
+     * @param lines
+     * @return the octets from the start of the message to the end of the
+     *         last line
+     * @throws IOException
+     * @throws BumsinkException
+     */
+    long readTopOctets(final long headerOctets, final int lines) throws IOException, BumsinkException {
 
-        final StringBuilder builder = new StringBuilder();
-        BufferedReader reader = null;
+        return lines <= 0 ? headerOctets : scan(headerOctets, lines);
+    }
+
+    /**
+     * @param envelope as kept by the {@link Storage} that saved the message
+     */
+    void setEnvelope(final Envelope envelope) {
+
+        this.envelope = envelope;
+    }
+
+    /**
+     * @param headerOctets the octets up to and including the blank line that
+     *            ends the headers, or -1 if not known
+     */
+    void setHeaderOctets(final long headerOctets) {
+
+        this.headerOctets = headerOctets;
+    }
+
+    /**
+     * Reads forward from a position, counting lines.
+     *
+     * @param position relative to the start of the message
+     * @param lines the number of lines to skip, or -1 to stop after the first
+     *            empty line
+     * @return the position after the last line, or the end of the message
+     */
+    private long scan(final long position, final int lines) throws IOException, BumsinkException {
+
+        final InputStream in = getStream();
         try {
-            reader = new BufferedReader(new FileReader(file));
-            for (int i = 0; i < lines; i++) {
-                final String line = reader.readLine();
-                if (line == null) {
-                    break;
+            final long end = getLength();
+            long skipped = 0;
+            while (skipped < position) {
+                final long n = in.skip(position - skipped);
+                if (n <= 0) {
+                    return end;
                 }
-                builder.append(line);
-                builder.append(EOL);
+                skipped += n;
             }
-        } catch (IOException e) {
-            throw new BumsinkException("Could not read file", e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // Do nothing
+            final byte[] bytes = new byte[BUFFER_SIZE];
+            final Scan scan = new Scan(position, lines);
+            int n;
+            while (scan.offset < end && (n = in.read(bytes)) > 0) {
+                if (scan.read(ByteBuffer.wrap(bytes, 0, n), end)) {
+                    return scan.offset;
                 }
             }
+            return Math.min(scan.offset, end);
+        } finally {
+            in.close();
         }
-        return builder.toString();
     }
 
-    String getUidl() throws BumsinkException {
+    /**
+     * Reads the subject from the headers. Nothing else is taken from them,
+     * as they are whatever the client sent.
+     *
+     * @param in positioned at the start of an email
+     * @param length how much of it there is to read
+     * @return the subject, unfolded but not decoded and cut short so it
+     *         always fits in an {@link Envelope}, or an empty string if there
+     *         isn't one
+     * @throws IOException
+     */
+    static String readSubject(final InputStream in, final long length) throws IOException {
 
-        if (file == null) {
-            throw new BumsinkException("No file found");
+        final InputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        final StringBuilder line = new StringBuilder();
+        String title = null;
+        boolean inSubject = false;
+        long position = 0;
+        int b;
+        while (position < length && (b = buffered.read()) >= 0) {
+            position++;
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            final String text = line.toString();
+            line.setLength(0);
+            if (text.length() == 0) {
+                break;
+            }
+            if (inSubject && (text.charAt(0) == ' ' || text.charAt(0) == '\t')) {
+                title += text;
+                continue;
+            }
+            inSubject = false;
+            if (title == null && text.regionMatches(true, 0, SUBJECT, 0, SUBJECT.length())) {
+                title = text.substring(SUBJECT.length()).trim();
+                inSubject = true;
+            }
         }
-        return file.getName().split("_")[0];
+        if (title == null) {
+            return "";
+        }
+        return title.length() > MAX_SUBJECT ? title.substring(0, MAX_SUBJECT) : title;
     }
 
     /**
-     * Returns the deleted.
-     * 
-     * @return the deleted
+     * Works out how much of a cached message TOP sends.
+     *
+     * @param data the whole message
+     * @param headerOctets
+     * @param lines
+     * @return the octets from the start of the message to the end of the
+     *         last line
+     * @see #readTopOctets(long, int)
      */
-    boolean isDeleted() {
-
-        return deleted;
-    }
-
-    void purge() {
+    static long readTopOctets(final ByteBuffer data, final long headerOctets, final int lines) {
 
-        if (file != null) {
-            file.delete();
+        if (lines <= 0) {
+            return headerOctets;
         }
+        final ByteBuffer buffer = data.duplicate();
+        buffer.position((int) headerOctets);
+        final Scan scan = new Scan(headerOctets, lines);
+        scan.read(buffer, buffer.limit());
+        return Math.min(scan.offset, buffer.limit());
     }
 
+
     /**
-     * Set the value of deleted.
-     * 
-     * @param deleted the deleted to set
+     * Counts lines across however many buffers they take.
      */
-    void setDeleted(boolean deleted) {
+    private static class Scan {
+
+        private int count = 0;
+        private int length = 0;
+        private final int lines;
+        private long offset;
+
+        /**
+         * @param offset where the first buffer starts
+         * @param lines the number of lines to skip, or -1 to stop after the
+         *            first empty line
+         */
+        private Scan(final long offset, final int lines) {
+
+            this.offset = offset;
+            this.lines = lines;
+        }
 
-        this.deleted = deleted;
+        /**
+         * @param buffer the bytes from the current offset on
+         * @param end where the message ends
+         * @return true if the offset is now just after the last line
+         */
+        private boolean read(final ByteBuffer buffer, final long end) {
+
+            while (buffer.hasRemaining() && offset < end) {
+                final byte b = buffer.get();
+                offset++;
+                if (b == '\n') {
+                    count++;
+                    if (lines < 0 ? length == 0 : count == lines) {
+                        return true;
+                    }
+                    length = 0;
+                } else if (b != '\r') {
+                    length++;
+                }
+            }
+            return false;
+        }
     }
 }
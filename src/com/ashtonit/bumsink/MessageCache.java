@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Recently saved emails, kept in memory so that fetching a message soon
+ * after it arrives doesn't touch the disk. Holds at most
+ * {@link Main#CACHE_SIZE} bytes and drops the least recently used email
+ * first. An email nobody has asked for in {@link Main#CACHE_AGE}
+ * milliseconds is dropped too.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class MessageCache {
+
+    private final long age;
+    private long bytes = 0;
+    private final LinkedHashMap<Message, Entry> entries = new LinkedHashMap<Message, Entry>(16, 0.75f, true);
+    private long evictions = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private final long size;
+
+    /**
+     * @param size the most bytes to hold
+     * @param age how long an email is kept without being used, in
+     *            milliseconds
+     */
+    MessageCache(final long size, final long age) {
+
+        this.size = size;
+        this.age = age;
+    }
+
+    /**
+     * @param octets
+     * @return true if an email of this size would be cached
+     */
+    boolean accepts(final long octets) {
+
+        return octets <= size;
+    }
+
+    /**
+     * @param message
+     * @return the whole message, ready to send, or null if it isn't cached
+     */
+    synchronized ByteBuffer get(final Message message) {
+
+        final long now = System.currentTimeMillis();
+        expire(now);
+        final Entry entry = entries.get(message);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.used = now;
+        return ByteBuffer.wrap(entry.data).asReadOnlyBuffer();
+    }
+
+    synchronized long getBytes() {
+
+        return bytes;
+    }
+
+    synchronized long getEvictions() {
+
+        return evictions;
+    }
+
+    synchronized long getHits() {
+
+        return hits;
+    }
+
+    synchronized long getMisses() {
+
+        return misses;
+    }
+
+    /**
+     * Caches a message, making room for it if need be. The cache owns the
+     * array afterwards.
+     *
+     * @param message
+     * @param data the whole message exactly as it is stored
+     */
+    synchronized void put(final Message message, final byte[] data) {
+
+        if (!accepts(data.length)) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final Entry old = entries.put(message, new Entry(data, now));
+        if (old != null) {
+            bytes -= old.data.length;
+        }
+        bytes += data.length;
+        expire(now);
+        final Iterator<Entry> i = entries.values().iterator();
+        while (bytes > size && i.hasNext()) {
+            bytes -= i.next().data.length;
+            i.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param message
+     */
+    synchronized void remove(final Message message) {
+
+        final Entry entry = entries.remove(message);
+        if (entry != null) {
+            bytes -= entry.data.length;
+        }
+    }
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+
+        final long lookups = hits + misses;
+        return "Message cache: " + entries.size() + " emails, " + bytes + " bytes, " + hits + " hits, " + misses
+            + " misses (" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%), " + evictions + " evictions";
+    }
+
+    /**
+     * Drops everything that hasn't been used for too long. Entries are in
+     * order of use, so it stops at the first that has.
+     */
+    private void expire(final long now) {
+
+        final Iterator<Map.Entry<Message, Entry>> i = entries.entrySet().iterator();
+        while (i.hasNext()) {
+            final Entry entry = i.next().getValue();
+            if (now - entry.used < age) {
+                return;
+            }
+            bytes -= entry.data.length;
+            i.remove();
+            evictions++;
+        }
+    }
+
+
+    /**
+     * A cached email.
+     */
+    private static class Entry {
+
+        private final byte[] data;
+        private long used;
+
+        private Entry(final byte[] data, final long used) {
+
+            this.data = data;
+            this.used = used;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.err;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * What BUMSink has been doing, kept up to date on the way and published as
+ * MBeans under {@link #DOMAIN}:
+ * <ul>
+ * <li>type=Counters, connections accepted, sessions open, emails and bytes
+ * stored, emails purged and log lines dropped since startup</li>
+ * <li>type=Store, the emails and bytes in the store, the emails waiting to
+ * be written and the message cache</li>
+ * <li>type=Latency,name=Commit, how long sessions wait for an email to be
+ * saved</li>
+ * <li>type=Latency,protocol=...,command=..., how long each SMTP and POP3
+ * command takes to handle, not counting the wait to send the reply;
+ * these appear with the first session of their protocol</li>
+ * </ul>
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Metrics {
+
+    static final LongAdder BYTES_STORED = new LongAdder();
+    static final Histogram COMMIT = new Histogram("Time to save an email, in microseconds");
+    static final String DOMAIN = "com.ashtonit.bumsink";
+    static final LongAdder MESSAGES_STORED = new LongAdder();
+    static final LongAdder POP_CONNECTIONS = new LongAdder();
+    static final LongAdder POP_SESSIONS = new LongAdder();
+    static final LongAdder PURGES = new LongAdder();
+    static final LongAdder SMTP_CONNECTIONS = new LongAdder();
+    static final LongAdder SMTP_SESSIONS = new LongAdder();
+
+    private Metrics() {
+
+        // Not for instantiating
+    }
+
+    /**
+     * Publishes an MBean. Failing to only costs the numbers, so it is
+     * logged rather than thrown.
+     *
+     * @param name the key properties of its name, after the domain
+     * @param bean
+     */
+    static void register(final String name, final Object bean) {
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(DOMAIN + ":" + name));
+        } catch (final JMException e) {
+            err("Cannot register MBean " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Publishes the counters, the store's gauges and the commit times.
+     *
+     * @param store
+     */
+    static void register(final Store store) {
+
+        register("type=Counters", new Gauges("Since startup", "SmtpConnections", "SmtpSessions", "PopConnections",
+            "PopSessions", "MessagesStored", "BytesStored", "Purges", "LogLinesDropped") {
+
+            long get(final String name) {
+
+                if ("SmtpConnections".equals(name)) {
+                    return SMTP_CONNECTIONS.sum();
+                } else if ("SmtpSessions".equals(name)) {
+                    return SMTP_SESSIONS.sum();
+                } else if ("PopConnections".equals(name)) {
+                    return POP_CONNECTIONS.sum();
+                } else if ("PopSessions".equals(name)) {
+                    return POP_SESSIONS.sum();
+                } else if ("MessagesStored".equals(name)) {
+                    return MESSAGES_STORED.sum();
+                } else if ("BytesStored".equals(name)) {
+                    return BYTES_STORED.sum();
+                } else if ("LogLinesDropped".equals(name)) {
+                    return Main.getDroppedLogLines();
+                } else {
+                    return PURGES.sum();
+                }
+            }
+        });
+        register("type=Store", new Gauges("The store now", "Emails", "Octets", "WriteQueue", "CacheBytes",
+            "CacheHits", "CacheMisses", "CacheEvictions") {
+
+            long get(final String name) {
+
+                final MessageCache cache = store.getCache();
+                if ("Emails".equals(name)) {
+                    return store.snapshot(null).size();
+                } else if ("Octets".equals(name)) {
+                    return store.snapshot(null).getTotalOctets();
+                } else if ("WriteQueue".equals(name)) {
+                    return store.getQueueLength();
+                } else if (cache == null) {
+                    return 0;
+                } else if ("CacheBytes".equals(name)) {
+                    return cache.getBytes();
+                } else if ("CacheHits".equals(name)) {
+                    return cache.getHits();
+                } else if ("CacheMisses".equals(name)) {
+                    return cache.getMisses();
+                } else {
+                    return cache.getEvictions();
+                }
+            }
+        });
+        register("type=Latency,name=Commit", COMMIT);
+    }
+}
@@ -15,29 +15,16 @@
  */
 package com.ashtonit.bumsink;
 
-import static com.ashtonit.bumsink.Main.ALL_THREADS;
 import static com.ashtonit.bumsink.Main.POP_BACKLOG;
 import static com.ashtonit.bumsink.Main.POP_HOST;
 import static com.ashtonit.bumsink.Main.POP_PORT;
-import static com.ashtonit.bumsink.Main.RUNNING;
-import static com.ashtonit.bumsink.Main.SO_TIMEOUT;
-import static com.ashtonit.bumsink.Main.info;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
 
 
 /**
  * @author Bruce Ashton
  * @date 2013-11-05
  */
-class PopServer extends Thread {
-
-    private final ServerSocket serverSocket;
+class PopServer extends Server {
 
     /**
      * @param threadGroup
@@ -45,36 +32,16 @@ class PopServer extends Thread {
      */
     PopServer(final ThreadGroup threadGroup) throws BumsinkException {
 
-        super(threadGroup, PopServer.class.getName());
-        try {
-            final InetAddress inetAddress = InetAddress.getByName(POP_HOST);
-            serverSocket = new ServerSocket(POP_PORT, POP_BACKLOG, inetAddress);
-            serverSocket.setSoTimeout(SO_TIMEOUT);
-        } catch (final UnknownHostException e) {
-            throw new BumsinkException(e);
-        } catch (final IOException e) {
-            throw new BumsinkException(e);
-        }
+        super(threadGroup, PopServer.class.getName(), POP_HOST, POP_PORT, POP_BACKLOG);
     }
 
     /**
-     * @see Thread#run()
+     * @see Server#newSession(Connection)
      */
     @Override
-    public void run() {
+    Session newSession(final Connection connection) throws BumsinkException {
 
-        info("PopServer started.");
-        while (RUNNING) {
-            try {
-                final Socket socket = serverSocket.accept();
-                new PopSession(ALL_THREADS, socket).start();
-            } catch (final SocketTimeoutException e) {
-                // Do nothing.
-            } catch (final IOException e) {
-                e.printStackTrace();
-            } catch (final Throwable t) {
-                t.printStackTrace();
-            }
-        }
+        Metrics.POP_CONNECTIONS.increment();
+        return new PopSession(connection);
     }
 }
@@ -15,182 +15,205 @@
  */
 package com.ashtonit.bumsink;
 
-import static com.ashtonit.bumsink.Main.DEBUG;
 import static com.ashtonit.bumsink.Main.EOL;
 import static com.ashtonit.bumsink.Main.VERSION;
+import static com.ashtonit.bumsink.Main.debug;
 import static com.ashtonit.bumsink.Main.err;
-import static com.ashtonit.bumsink.Main.info;
+import static com.ashtonit.bumsink.Main.sampleSession;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ashtonit.bumsink.Events.CommandEvent;
+import com.ashtonit.bumsink.Events.SessionEvent;
 
 
 /**
- * A Pop connection with a single client.
+ * A Pop connection with a single client. Replies are not flushed one by
+ * one; the {@link Connection} flushes them once it has handed over
+ * everything the client has sent so far, so pipelined commands are answered
+ * together. Listings are built up whole and written in one go.
  * 
  * @author Bruce Ashton
  * @date 2013-11-05
  */
-class PopSession extends Thread {
-
-    private static final String CMD_APOP = "APOP";
-    private static final String CMD_DELE = "DELE";
-    private static final String CMD_LIST = "LIST";
-    private static final String CMD_NOOP = "NOOP";
-    private static final String CMD_PASS = "PASS";
-    private static final String CMD_QUIT = "QUIT";
-    private static final String CMD_RETR = "RETR";
-    private static final String CMD_RSET = "RSET";
-    private static final String CMD_STAT = "STAT";
-    private static final String CMD_TOP = "TOP";
-    private static final String CMD_UIDL = "UIDL";
-    private static final String CMD_USER = "USER";
-
+class PopSession implements Session {
+
+    private static final VerbTable VERBS = new VerbTable("POP3");
+
+    private static final int CMD_APOP = VERBS.add("APOP");
+    private static final int CMD_CAPA = VERBS.add("CAPA");
+    private static final int CMD_DELE = VERBS.add("DELE");
+    private static final int CMD_LIST = VERBS.add("LIST");
+    private static final int CMD_NOOP = VERBS.add("NOOP");
+    private static final int CMD_PASS = VERBS.add("PASS");
+    private static final int CMD_QUIT = VERBS.add("QUIT");
+    private static final int CMD_RETR = VERBS.add("RETR");
+    private static final int CMD_RSET = VERBS.add("RSET");
+    private static final int CMD_STAT = VERBS.add("STAT");
+    private static final int CMD_TOP = VERBS.add("TOP");
+    private static final int CMD_UIDL = VERBS.add("UIDL");
+    private static final int CMD_USER = VERBS.add("USER");
+
+    private static final String CAPABILITIES = "TOP" + EOL + "UIDL" + EOL + "USER" + EOL + "PIPELINING" + EOL;
     private static final String EOM = ".";
     private static final String ERR = "-ERR ";
     private static final String OK = "+OK ";
+    private static final String PROTOCOL = "POP3";
 
-    private final BufferedReader reader;
-    private final Socket socket;
+    private int commands = 0;
+    private final Connection connection;
+    private final SessionEvent lifetime = new SessionEvent();
+    private Mailbox mailbox;
     private final Store store;
-
-    private final BufferedWriter writer;
+    private final boolean tracing;
+    private String user;
+    private final Writer writer;
+    private long written = 0;
 
     /**
-     * @param threadGroup
-     * @param socket
+     * @param connection
      * @throws BumsinkException
      */
-    PopSession(final ThreadGroup threadGroup, final Socket socket) throws BumsinkException {
-
-        super(threadGroup, socket.toString());
-        this.socket = socket;
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        } catch (final IOException e) {
-            throw new BumsinkException(e);
-        }
+    PopSession(final Connection connection) throws BumsinkException {
+
+        this.connection = connection;
+        writer = connection.getWriter();
         this.store = Store.getInstance();
-        setDaemon(true);
+        tracing = sampleSession();
+        Metrics.POP_SESSIONS.increment();
+        lifetime.begin();
     }
 
     /**
-     * @see Thread#run()
+     * @see Session#close()
      */
-    @Override
-    public void run() {
-
-        try {
-            write(OK + "BUMSink POP3 server version " + VERSION + " ready");
-            String line = reader.readLine();
-            while (line != null) {
-                if (DEBUG) {
-                    info("read: " + line);
-                }
-                if (line.startsWith(CMD_APOP)) {
-                    handleApop(line);
-                } else if (line.startsWith(CMD_DELE)) {
-                    handleDele(line);
-                } else if (line.startsWith(CMD_LIST)) {
-                    handleList(line);
-                } else if (line.startsWith(CMD_NOOP)) {
-                    handleNoop();
-                } else if (line.startsWith(CMD_QUIT)) {
-                    handleQuit(line);
-                } else if (line.startsWith(CMD_RSET)) {
-                    handleRset(line);
-                } else if (line.startsWith(CMD_RETR)) {
-                    handleRetr(line);
-                } else if (line.startsWith(CMD_STAT)) {
-                    handleStat();
-                } else if (line.startsWith(CMD_USER)) {
-                    handleUser(line);
-                } else if (line.startsWith(CMD_PASS)) {
-                    handlePass(line);
-                } else if (line.startsWith(CMD_TOP)) {
-                    handleTop(line);
-                } else if (line.startsWith(CMD_UIDL)) {
-                    handleUidl(line);
-                } else
-                    handleWtf(line);
-                line = reader.readLine();
-            }
-        } catch (final IOException e) {
-            // Don't care
-        } finally {
-            if (!socket.isClosed()) {
-                try {
-                    socket.close();
-                } catch (final IOException e) {
-                    // Don't care
-                }
-            }
+    public void close() {
+
+        Metrics.POP_SESSIONS.decrement();
+        Events.commit(lifetime, PROTOCOL, commands);
+    }
+
+    /**
+     * @see Session#open()
+     */
+    public void open() throws IOException {
+
+        write(OK + "BUMSink POP3 server version " + VERSION + " ready");
+        writer.flush();
+    }
+
+    /**
+     * @see Session#read(Line)
+     */
+    public void read(final Line line) throws IOException {
+
+        if (tracing) {
+            debug("read: ", line);
         }
+        final int verb = VERBS.get(line);
+        final CommandEvent event = new CommandEvent();
+        event.begin();
+        final long before = written;
+        final long start = System.nanoTime();
+        if (verb == CMD_APOP) {
+            handleApop(line);
+        } else if (verb == CMD_CAPA) {
+            handleCapa();
+        } else if (verb == CMD_DELE) {
+            handleDele(line);
+        } else if (verb == CMD_LIST) {
+            handleList(line);
+        } else if (verb == CMD_NOOP) {
+            handleNoop();
+        } else if (verb == CMD_QUIT) {
+            handleQuit(line);
+        } else if (verb == CMD_RSET) {
+            handleRset(line);
+        } else if (verb == CMD_RETR) {
+            handleRetr(line);
+        } else if (verb == CMD_STAT) {
+            handleStat();
+        } else if (verb == CMD_USER) {
+            handleUser(line);
+        } else if (verb == CMD_PASS) {
+            handlePass(line);
+        } else if (verb == CMD_TOP) {
+            handleTop(line);
+        } else if (verb == CMD_UIDL) {
+            handleUidl(line);
+        } else
+            handleWtf(line);
+        VERBS.time(verb, System.nanoTime() - start);
+        commands++;
+        Events.commit(event, PROTOCOL, VERBS.getCommand(verb), line.length() + EOL.length(), written - before);
+    }
+
+    /**
+     * @see Session#readRaw(byte[], int, int)
+     */
+    public void readRaw(final byte[] bytes, final int offset, final int length) {
+
+        // Never asked for
     }
 
-    private void handleApop(final String line) throws IOException {
+    private void handleApop(final Line line) throws IOException {
 
-        write(OK + "Hello " + line.split(" ")[0]);
+        user = line.word(1);
+        mailbox = store.open(user);
+        write(OK + "Hello " + line.word(0));
     }
 
-    private void handleDele(final String line) throws IOException {
+    private void handleCapa() throws IOException {
+
+        final StringBuilder capa = new StringBuilder(OK).append("Capability list follows").append(EOL);
+        capa.append(CAPABILITIES).append(EOM).append(EOL);
+        write(capa);
+    }
 
-        final String[] words = line.split("\\s+");
-        if (words.length < 2) {
+    private void handleDele(final Line line) throws IOException {
+
+        if (line.words() < 2) {
             err(ERR + "not enough arguments");
             write(ERR + "not enough arguments");
         } else {
-            final int count = store.getMsgCount();
-            final int msgNum = Integer.parseInt(words[1]);
-            if (msgNum < 1 || msgNum > count) {
+            final int msgNum = line.intWord(1);
+            if (!mailbox().exists(msgNum)) {
                 err(ERR + msgNum + " no such message");
                 write(ERR + msgNum + " no such message");
             } else {
-                try {
-                    store.getMessage(msgNum).setDeleted(true);
-                    write(OK + "message " + msgNum + " deleted");
-                } catch (BumsinkException e) {
-                    err(ERR + msgNum + " no such message");
-                    e.printStackTrace();
-                    write(ERR + msgNum + " no such message");
-                }
+                mailbox.delete(msgNum);
+                write(OK + "message " + msgNum + " deleted");
             }
         }
     }
 
-    private void handleList(final String line) throws IOException {
+    private void handleList(final Line line) throws IOException {
 
-        final int count = store.getMsgCount();
-        final String[] words = line.split("\\s+");
-        if (words.length < 2) {
-            write(OK + "scan listing follows");
-            for (int i = 1; i <= count; i++) {
+        final Mailbox mailbox = mailbox();
+        if (line.words() < 2) {
+            final StringBuilder list = new StringBuilder(OK).append("scan listing follows").append(EOL);
+            for (int i = 1; i <= mailbox.size(); i++) {
                 try {
-                    final Message message = store.getMessage(i);
-                    final long octets = message.getOctets();
-                    if (!message.isDeleted()) {
-                        write(i + " " + octets);
+                    if (mailbox.exists(i)) {
+                        list.append(i).append(' ').append(mailbox.getOctets(i)).append(EOL);
                     }
                 } catch (BumsinkException e) {
                     e.printStackTrace();
                 }
             }
-            write(EOM);
+            write(list.append(EOM).append(EOL));
         } else {
-            final int msgNum = Integer.parseInt(words[1]);
-            if (msgNum < 1 || msgNum > count) {
+            final int msgNum = line.intWord(1);
+            if (!mailbox().exists(msgNum)) {
                 err(ERR + msgNum + "no such message");
                 write(ERR + msgNum + "no such message");
             } else {
                 try {
-                    final Message message = store.getMessage(msgNum);
-                    final long octets = message.getOctets();
+                    final long octets = mailbox.getOctets(msgNum);
                     write(OK + msgNum + " " + octets);
                 } catch (BumsinkException e) {
                     err(ERR + msgNum + " could not read message from file");
@@ -206,42 +229,46 @@ class PopSession extends Thread {
         write(OK);
     }
 
-    private void handlePass(final String line) throws IOException {
+    private void handlePass(final Line line) throws IOException {
 
+        mailbox = store.open(user);
         write(OK + "Seems legit");
     }
 
-    private void handleQuit(final String line) throws IOException {
+    private void handleQuit(final Line line) throws IOException {
 
-        store.quit();
+        if (mailbox != null) {
+            store.quit(mailbox);
+        }
         write(OK + "BUMSink POP3 signing off");
-        socket.close();
+        writer.flush();
+        connection.close();
     }
 
-    private void handleRetr(final String line) throws IOException {
+    private void handleRetr(final Line line) throws IOException {
 
-        final String[] words = line.split("\\s+");
-        if (words.length < 2) {
+        if (line.words() < 2) {
             err(ERR + "no such message");
             write(ERR + "no such message");
         } else {
-            final int count = store.getMsgCount();
-            final int msgNum = Integer.parseInt(words[1]);
-            if (msgNum < 1 || msgNum > count) {
+            final int msgNum = line.intWord(1);
+            if (!mailbox().exists(msgNum)) {
                 err(ERR + msgNum + " no such message");
                 write(ERR + msgNum + " no such message");
             } else {
+                ByteBuffer cached = null;
+                FileChannel channel = null;
+                InputStream stream = null;
+                long octets = 0;
                 try {
-                    final Message message = store.getMessage(msgNum);
-                    final long octets = message.getOctets();
-                    final Reader reader = message.getReader();
-                    write(OK + octets + " octets");
-                    int chr = reader.read();
-                    while (chr > -1) {
-                        writer.write(chr);
-                        chr = reader.read();
+                    final Message message = mailbox.getMessage(msgNum);
+                    octets = mailbox.getOctets(msgNum);
+                    cached = store.getCached(message);
+                    if (cached == null && message.isCompressed()) {
+                        stream = message.getStream();
+                    } else if (cached == null) {
+                        channel = message.getChannel();
                     }
-                    write(EOM);
                 } catch (final IOException e) {
                     err(ERR + msgNum + " could not read message from file");
                     e.printStackTrace();
@@ -251,78 +278,146 @@ class PopSession extends Thread {
                     e.printStackTrace();
                     write(ERR + msgNum + " could not read message from file");
                 }
+                if (cached != null) {
+                    write(OK + octets + " octets");
+                    connection.send(cached);
+                    written += octets;
+                    write(EOM);
+                } else if (channel != null) {
+                    try {
+                        write(OK + octets + " octets");
+                    } catch (final IOException e) {
+                        channel.close();
+                        throw e;
+                    }
+                    // Stored exactly as it goes on the wire, dot-stuffed and
+                    // CRLF terminated, so the file is sent untouched.
+                    connection.send(channel, channel.position(), octets);
+                    written += octets;
+                    write(EOM);
+                } else if (stream != null) {
+                    try {
+                        write(OK + octets + " octets");
+                    } catch (final IOException e) {
+                        stream.close();
+                        throw e;
+                    }
+                    // Decompressed as it goes out
+                    connection.send(stream, octets);
+                    written += octets;
+                    write(EOM);
+                }
             }
         }
     }
 
-    private void handleRset(final String line) throws IOException {
+    private void handleRset(final Line line) throws IOException {
 
-        store.reset();
-        write(OK + store.getMsgCount() + " " + store.getMsgOctets());
+        mailbox().reset();
+        write(OK + mailbox.getCount() + " " + mailbox.getOctets());
     }
 
     private void handleStat() throws IOException {
 
-        write(OK + store.getMsgCount() + " " + store.getMsgOctets());
+        write(OK + mailbox().getCount() + " " + mailbox.getOctets());
     }
 
-    private void handleTop(final String line) throws IOException {
+    private void handleTop(final Line line) throws IOException {
 
-        final String[] words = line.split("\\s+");
-        if (words.length < 3) {
+        if (line.words() < 3) {
             err(ERR + "not enough arguments");
             write(ERR + "not enough arguments");
         } else {
-            final int count = store.getMsgCount();
-            final int msgNum = Integer.parseInt(words[1]);
-            final int lines = Integer.parseInt(words[2]);
-            if (msgNum < 1 || msgNum > count) {
+            final int msgNum = line.intWord(1);
+            final int lines = line.intWord(2);
+            if (!mailbox().exists(msgNum)) {
                 err(ERR + msgNum + " no such message");
                 write(ERR + msgNum + " no such message");
             } else {
+                ByteBuffer cached = null;
+                FileChannel channel = null;
+                InputStream stream = null;
+                long octets = 0;
+                long topOctets = 0;
                 try {
-                    final Message message = store.getMessage(msgNum);
-                    final long octets = message.getOctets();
-                    final String top = message.getTop(lines);
-                    write(OK + octets + " octets");
-                    write(top);
-                    write(EOM + EOL);
+                    final Message message = mailbox.getMessage(msgNum);
+                    octets = mailbox.getOctets(msgNum);
+                    cached = store.getCached(message);
+                    if (cached == null) {
+                        topOctets = message.readTopOctets(mailbox.getHeaderOctets(msgNum), lines);
+                        if (message.isCompressed()) {
+                            stream = message.getStream();
+                        } else {
+                            channel = message.getChannel();
+                        }
+                    } else {
+                        topOctets = Message.readTopOctets(cached, mailbox.getHeaderOctets(msgNum), lines);
+                    }
+                } catch (final IOException e) {
+                    err(ERR + msgNum + " could not read message from file");
+                    e.printStackTrace();
+                    write(ERR + msgNum + " could not read message from file");
                 } catch (final BumsinkException e) {
                     err(ERR + msgNum + " could not read message from file");
                     e.printStackTrace();
                     write(ERR + msgNum + " could not read message from file");
                 }
+                if (cached != null) {
+                    write(OK + octets + " octets");
+                    cached.limit((int) topOctets);
+                    connection.send(cached);
+                    written += topOctets;
+                    write(EOM);
+                } else if (channel != null) {
+                    try {
+                        write(OK + octets + " octets");
+                    } catch (final IOException e) {
+                        channel.close();
+                        throw e;
+                    }
+                    // The headers, the blank line and the first lines of the
+                    // body, straight from the file like RETR.
+                    connection.send(channel, channel.position(), topOctets);
+                    written += topOctets;
+                    write(EOM);
+                } else if (stream != null) {
+                    try {
+                        write(OK + octets + " octets");
+                    } catch (final IOException e) {
+                        stream.close();
+                        throw e;
+                    }
+                    connection.send(stream, topOctets);
+                    written += topOctets;
+                    write(EOM);
+                }
             }
         }
     }
 
-    private void handleUidl(final String line) throws IOException {
+    private void handleUidl(final Line line) throws IOException {
 
-        final int count = store.getMsgCount();
-        final String[] words = line.split("\\s+");
-        if (words.length < 2) {
-            write(OK + "UIDL listing follows");
-            for (int i = 1; i <= count; i++) {
+        final Mailbox mailbox = mailbox();
+        if (line.words() < 2) {
+            final StringBuilder list = new StringBuilder(OK).append("UIDL listing follows").append(EOL);
+            for (int i = 1; i <= mailbox.size(); i++) {
                 try {
-                    final Message message = store.getMessage(i);
-                    if (!message.isDeleted()) {
-                        final String uidl = message.getUidl();
-                        write(i + " " + uidl);
+                    if (mailbox.exists(i)) {
+                        list.append(i).append(' ').append(mailbox.getUid(i)).append(EOL);
                     }
                 } catch (BumsinkException e) {
                     e.printStackTrace();
                 }
             }
-            write(EOM);
+            write(list.append(EOM).append(EOL));
         } else {
-            final int msgNum = Integer.parseInt(words[1]);
-            if (msgNum < 1 || msgNum > count) {
+            final int msgNum = line.intWord(1);
+            if (!mailbox().exists(msgNum)) {
                 err(ERR + msgNum + "no such message");
                 write(ERR + msgNum + "no such message");
             } else {
                 try {
-                    final Message message = store.getMessage(msgNum);
-                    final String uidl = message.getUidl();
+                    final String uidl = mailbox.getUid(msgNum);
                     write(OK + msgNum + " " + uidl);
                 } catch (BumsinkException e) {
                     e.printStackTrace();
@@ -333,23 +428,52 @@ class PopSession extends Thread {
         }
     }
 
-    private void handleUser(final String line) throws IOException {
+    private void handleUser(final Line line) throws IOException {
 
+        user = line.word(1);
         write(OK + "Hello " + line);
     }
 
-    private void handleWtf(String line) throws IOException {
+    private void handleWtf(final Line line) throws IOException {
 
         err(ERR + "Unknown command: " + line);
         write(ERR + "Unknown command: " + line);
     }
 
+    /**
+     * Clients are supposed to log in first, but nothing here insists on it.
+     *
+     * @return the session's mailbox, opening it if there isn't one yet
+     */
+    private Mailbox mailbox() {
+
+        if (mailbox == null) {
+            mailbox = store.open(user);
+        }
+        return mailbox;
+    }
+
     private void write(final String line) throws IOException {
 
-        if (DEBUG) {
-            info("write: " + line);
+        if (tracing) {
+            debug("write: ", line);
         }
         writer.write(line + EOL);
-        writer.flush();
+        written += line.length() + EOL.length();
+    }
+
+    /**
+     * Writes a whole multi-line reply at once.
+     *
+     * @param lines each ending with a line terminator
+     * @throws IOException
+     */
+    private void write(final StringBuilder lines) throws IOException {
+
+        if (tracing) {
+            debug("write: ", lines);
+        }
+        writer.append(lines);
+        written += lines.length();
     }
 }
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.RETENTION_INTERVAL;
+import static com.ashtonit.bumsink.Main.RUNNING;
+import static com.ashtonit.bumsink.Main.info;
+
+
+/**
+ * Wakes up every {@link Main#RETENTION_INTERVAL} milliseconds and has the
+ * {@link Store} delete its oldest emails until it is back within the
+ * retention limits. Runs at low priority and deletes a batch at a time, so
+ * incoming email is never held up for long.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Reaper extends Thread {
+
+    private final Store store;
+
+    /**
+     * @param threadGroup
+     * @param store
+     */
+    Reaper(final ThreadGroup threadGroup, final Store store) {
+
+        super(threadGroup, "Reaper");
+        this.store = store;
+        setDaemon(true);
+        setPriority(MIN_PRIORITY);
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        while (RUNNING) {
+            try {
+                sleep(RETENTION_INTERVAL);
+                int reaped = 0;
+                int batch;
+                while ((batch = store.reap(System.currentTimeMillis())) > 0) {
+                    reaped += batch;
+                    Thread.yield();
+                }
+                if (reaped > 0) {
+                    info("Reaped " + reaped + " emails.");
+                }
+            } catch (final InterruptedException e) {
+                // Don't care
+            }
+        }
+    }
+}
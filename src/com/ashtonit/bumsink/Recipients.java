@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * An {@link Index} for each envelope recipient, so a POP3 login that names
+ * one only has to look at its own emails. Only the {@link Envelope} a
+ * {@link Storage} kept for an email decides whose it is, never its headers.
+ * <p>
+ * A recipient keeps its index once it has one, even if it empties, so a
+ * login doesn't go from its own mailbox to the catch-all.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Recipients {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<String, Index> indexes = new ConcurrentHashMap<String, Index>();
+
+    /**
+     * Adds a message to the index of each of its recipients.
+     *
+     * @param message
+     * @param uid
+     * @param octets
+     * @param arrival
+     */
+    void add(final Message message, final String uid, final long octets, final long arrival) {
+
+        for (final String recipient : message.getEnvelope().getRecipients()) {
+            index(recipient).add(message, uid, octets, arrival);
+        }
+    }
+
+    /**
+     * Removes messages from the indexes of their recipients.
+     *
+     * @param messages
+     */
+    void remove(final Collection<Message> messages) {
+
+        final Map<String, List<Message>> byRecipient = new HashMap<String, List<Message>>();
+        for (final Message message : messages) {
+            for (final String recipient : message.getEnvelope().getRecipients()) {
+                List<Message> list = byRecipient.get(recipient);
+                if (list == null) {
+                    list = new ArrayList<Message>();
+                    byRecipient.put(recipient, list);
+                }
+                list.add(message);
+            }
+        }
+        for (final Map.Entry<String, List<Message>> entry : byRecipient.entrySet()) {
+            final Index index = indexes.get(entry.getKey());
+            if (index != null) {
+                index.remove(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param recipient as returned by {@link #address(String)}
+     * @return the recipient's emails, or null if it has never had any
+     */
+    Snapshot snapshot(final String recipient) {
+
+        final Index index = indexes.get(recipient);
+        return index == null ? null : index.snapshot();
+    }
+
+    /**
+     * Puts every recipient's emails in order of arrival.
+     *
+     * @see Index#sort()
+     */
+    void sort() {
+
+        for (final Index index : indexes.values()) {
+            index.sort();
+        }
+    }
+
+    private Index index(final String recipient) {
+
+        Index index = indexes.get(recipient);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(recipient);
+                if (index == null) {
+                    index = new Index(INITIAL_CAPACITY);
+                    indexes.put(recipient, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reduces an address as written in an SMTP command or a POP3 login to
+     * the form the indexes are keyed by.
+     *
+     * @param text
+     * @return the bare address, in lower case
+     */
+    static String address(final String text) {
+
+        String address = text.trim();
+        if (address.startsWith("<")) {
+            final int end = address.indexOf('>');
+            address = address.substring(1, end < 0 ? address.length() : end);
+        } else {
+            final int space = address.indexOf(' ');
+            if (space >= 0) {
+                address = address.substring(0, space);
+            }
+        }
+        return address.toLowerCase();
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.RUNNING;
+import static com.ashtonit.bumsink.Main.SEARCH_BODY;
+import static com.ashtonit.bumsink.Main.SO_TIMEOUT;
+import static com.ashtonit.bumsink.Main.err;
+import static com.ashtonit.bumsink.Main.info;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * An inverted index of the words in each email's From, To, Cc, Subject and
+ * Message-ID headers and the first {@link Main#SEARCH_BODY} bytes of its
+ * body. A word is a run of at least two ASCII letters or digits, ignoring
+ * case. Each word has a posting list of the emails it appears in, in the
+ * order they were indexed, so a search for several words is an intersection
+ * of sorted lists that starts with the shortest and never reads an email.
+ * <p>
+ * This thread indexes emails after they are saved, so a search can miss an
+ * email for a moment after it arrives, and deletions queue up behind them.
+ * Each checkpoint writes the index to {@link #FILE} in the first mail
+ * directory, leaving out deleted emails, so a restart only has to index the
+ * emails it doesn't know. Encoded words in headers are not decoded.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class SearchIndex extends Thread {
+
+    static final String FILE = ".search";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final Snapshot EMPTY = new Index(1).snapshot();
+    private static final Set<String> FIELDS = new HashSet<String>(Arrays.asList("from", "to", "cc", "subject",
+        "message-id"));
+    private static final int MAGIC = 0x424d5349;
+    private static final int MAX_WORD = 64;
+    private static final int MIN_WORD = 2;
+
+    private final Map<Message, Document> byMessage = new HashMap<Message, Document>();
+    private final Map<String, Document> byUid = new HashMap<String, Document>();
+    private boolean changed = false;
+    private int deleted = 0;
+    private List<Document> documents = new ArrayList<Document>();
+    private final File file;
+    private final BlockingQueue<Document> queue = new LinkedBlockingQueue<Document>();
+    private final Map<String, Postings> words = new HashMap<String, Postings>();
+
+    /**
+     * @param threadGroup
+     * @param file where the index is kept between runs
+     */
+    SearchIndex(final ThreadGroup threadGroup, final File file) {
+
+        super(threadGroup, "SearchIndex");
+        this.file = file;
+        setDaemon(true);
+        setPriority(MIN_PRIORITY);
+    }
+
+    /**
+     * Queues a newly saved email to be indexed.
+     *
+     * @param message
+     * @param uid
+     * @param octets
+     * @param arrival
+     */
+    void add(final Message message, final String uid, final long octets, final long arrival) {
+
+        queue.add(new Document(message, uid, octets, arrival));
+    }
+
+    /**
+     * Matches the emails the index was loaded with to the emails in the
+     * store, once the store has loaded. Emails the index doesn't know are
+     * queued to be indexed, and those the store doesn't have are dropped.
+     *
+     * @param snapshot every email in the store
+     */
+    synchronized void attach(final Snapshot snapshot) {
+
+        int queued = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            final Document document = byUid.get(snapshot.getUid(i));
+            if (document == null) {
+                queue.add(new Document(snapshot.getMessage(i), snapshot.getUid(i), snapshot.getOctets(i),
+                    snapshot.getArrival(i)));
+                queued++;
+            } else if (document.message == null) {
+                document.message = snapshot.getMessage(i);
+                document.octets = snapshot.getOctets(i);
+                document.arrival = snapshot.getArrival(i);
+                byMessage.put(document.message, document);
+            }
+        }
+        for (final Document document : documents) {
+            if (document != null && document.message == null) {
+                drop(document);
+            }
+        }
+        info("Search index has " + byMessage.size() + " emails, with " + queued + " more to index.");
+    }
+
+    /**
+     * Reads the index left by the last run, if there is one. Its emails
+     * can't be found until they are attached.
+     *
+     * @see #attach(Snapshot)
+     */
+    synchronized void load() {
+
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                BUFFER_SIZE));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a search index");
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final Document document = new Document(null, in.readUTF(), 0, 0);
+                    document.id = i;
+                    documents.add(document);
+                    byUid.put(document.uid, document);
+                }
+                final int wordCount = in.readInt();
+                for (int i = 0; i < wordCount; i++) {
+                    final String word = in.readUTF();
+                    final int size = in.readInt();
+                    final Postings postings = new Postings(size);
+                    int id = -1;
+                    for (int j = 0; j < size; j++) {
+                        id += readNumber(in);
+                        postings.add(id);
+                    }
+                    words.put(word, postings);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final FileNotFoundException e) {
+            // Don't care
+        } catch (final IOException e) {
+            err("Ignoring search index: " + e.getMessage());
+            byUid.clear();
+            documents.clear();
+            words.clear();
+        }
+    }
+
+    /**
+     * Queues deleted emails to be dropped from the index.
+     *
+     * @param messages
+     */
+    void remove(final Collection<Message> messages) {
+
+        for (final Message message : messages) {
+            queue.add(new Document(message, null, 0, 0));
+        }
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        while (RUNNING) {
+            try {
+                final Document document = queue.poll(SO_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (document == null) {
+                    continue;
+                }
+                if (document.uid == null) {
+                    remove(document.message);
+                } else {
+                    index(document);
+                }
+            } catch (final InterruptedException e) {
+                // Don't care
+            }
+        }
+    }
+
+    /**
+     * Writes the index out, if it has changed, leaving out deleted emails
+     * and renumbering the rest.
+     *
+     * @throws IOException
+     */
+    synchronized void save() throws IOException {
+
+        if (!changed) {
+            return;
+        }
+        compact();
+        final File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(documents.size());
+            for (final Document document : documents) {
+                out.writeUTF(document.uid);
+            }
+            out.writeInt(words.size());
+            for (final Map.Entry<String, Postings> entry : words.entrySet()) {
+                final Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.size);
+                int last = -1;
+                for (int i = 0; i < postings.size; i++) {
+                    writeNumber(out, postings.ids[i] - last);
+                    last = postings.ids[i];
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        changed = false;
+    }
+
+    /**
+     * Finds the emails that contain every word of a query.
+     *
+     * @param query
+     * @return the emails, in the order they were indexed
+     * @throws IllegalArgumentException if the query has no words in it
+     */
+    Snapshot search(final String query) {
+
+        final Set<String> wanted = new HashSet<String>();
+        words(query, wanted);
+        if (wanted.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to search for: " + query);
+        }
+        synchronized (this) {
+            final Postings[] lists = new Postings[wanted.size()];
+            int n = 0;
+            for (final String word : wanted) {
+                lists[n] = words.get(word);
+                if (lists[n++] == null) {
+                    return EMPTY;
+                }
+            }
+            Arrays.sort(lists, new Comparator<Postings>() {
+
+                public int compare(final Postings a, final Postings b) {
+
+                    return a.size - b.size;
+                }
+            });
+            final int[] found = Arrays.copyOf(lists[0].ids, lists[0].size);
+            int count = found.length;
+            for (int i = 1; i < lists.length && count > 0; i++) {
+                count = lists[i].retain(found, count);
+            }
+            final long[] arrivals = new long[count];
+            final Message[] messages = new Message[count];
+            final long[] octets = new long[count];
+            final String[] uids = new String[count];
+            int size = 0;
+            long totalOctets = 0;
+            for (int i = 0; i < count; i++) {
+                final Document document = documents.get(found[i]);
+                if (document == null || document.message == null) {
+                    continue;
+                }
+                arrivals[size] = document.arrival;
+                messages[size] = document.message;
+                octets[size] = document.octets;
+                uids[size] = document.uid;
+                totalOctets += document.octets;
+                size++;
+            }
+            return new Snapshot(arrivals, messages, octets, uids, size, totalOctets);
+        }
+    }
+
+    /**
+     * Renumbers the emails that are left, in the same order, so the
+     * posting lists stay sorted.
+     */
+    private void compact() {
+
+        if (deleted == 0) {
+            return;
+        }
+        final int[] ids = new int[documents.size()];
+        final List<Document> kept = new ArrayList<Document>(documents.size() - deleted);
+        for (int i = 0; i < documents.size(); i++) {
+            final Document document = documents.get(i);
+            if (document == null) {
+                ids[i] = -1;
+            } else {
+                ids[i] = document.id = kept.size();
+                kept.add(document);
+            }
+        }
+        final Iterator<Postings> i = words.values().iterator();
+        while (i.hasNext()) {
+            final Postings postings = i.next();
+            int size = 0;
+            for (int j = 0; j < postings.size; j++) {
+                if (ids[postings.ids[j]] >= 0) {
+                    postings.ids[size++] = ids[postings.ids[j]];
+                }
+            }
+            postings.size = size;
+            if (size == 0) {
+                i.remove();
+            }
+        }
+        documents = kept;
+        deleted = 0;
+    }
+
+    private void drop(final Document document) {
+
+        documents.set(document.id, null);
+        byUid.remove(document.uid);
+        if (document.message != null) {
+            byMessage.remove(document.message);
+        }
+        deleted++;
+        changed = true;
+    }
+
+    /**
+     * Reads an email's words without holding the lock, then adds them.
+     */
+    private void index(final Document document) {
+
+        synchronized (this) {
+            if (byUid.containsKey(document.uid)) {
+                return;
+            }
+        }
+        final Set<String> found = new HashSet<String>();
+        try {
+            read(document.message, found);
+        } catch (final IOException e) {
+            err("Not indexing " + document.uid + ": " + e.getMessage());
+            return;
+        } catch (final BumsinkException e) {
+            err("Not indexing " + document.uid + ": " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            document.id = documents.size();
+            documents.add(document);
+            byUid.put(document.uid, document);
+            byMessage.put(document.message, document);
+            for (final String word : found) {
+                Postings postings = words.get(word);
+                if (postings == null) {
+                    postings = new Postings(1);
+                    words.put(word, postings);
+                }
+                postings.add(document.id);
+            }
+            changed = true;
+        }
+    }
+
+    private synchronized void remove(final Message message) {
+
+        final Document document = byMessage.get(message);
+        if (document != null) {
+            drop(document);
+        }
+    }
+
+    /**
+     * Reads the words of the headers that are indexed, and of the start of
+     * the body.
+     */
+    private static void read(final Message message, final Set<String> found) throws IOException,
+        BumsinkException {
+
+        final InputStream in = new BufferedInputStream(message.getStream(), BUFFER_SIZE);
+        try {
+            final long length = message.getLength();
+            final StringBuilder line = new StringBuilder();
+            final StringBuilder field = new StringBuilder();
+            boolean body = false;
+            long position = 0;
+            int b;
+            while (position < length && (b = in.read()) >= 0) {
+                position++;
+                if (body) {
+                    line.append((char) b);
+                    if (line.length() >= SEARCH_BODY) {
+                        break;
+                    }
+                    continue;
+                }
+                if (b != '\n') {
+                    if (b != '\r') {
+                        line.append((char) b);
+                    }
+                    continue;
+                }
+                final String text = line.toString();
+                line.setLength(0);
+                if (text.length() > 0 && (text.charAt(0) == ' ' || text.charAt(0) == '\t')) {
+                    field.append(text);
+                    continue;
+                }
+                words(field, found);
+                field.setLength(0);
+                if (text.length() == 0) {
+                    body = true;
+                    if (SEARCH_BODY == 0) {
+                        break;
+                    }
+                    continue;
+                }
+                final int colon = text.indexOf(':');
+                if (colon > 0 && FIELDS.contains(text.substring(0, colon).trim().toLowerCase())) {
+                    field.append(text, colon + 1, text.length());
+                }
+            }
+            words(field, found);
+            if (body) {
+                words(line, found);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readNumber(final DataInputStream in) throws IOException {
+
+        int number = 0;
+        for (int shift = 0;; shift += 7) {
+            final int b = in.readUnsignedByte();
+            number |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return number;
+            }
+        }
+    }
+
+    /**
+     * Adds the words in some text, in lower case.
+     */
+    private static void words(final CharSequence text, final Set<String> found) {
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+            if (c < 0x80 && Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+                continue;
+            }
+            if (start >= 0 && i - start >= MIN_WORD && i - start <= MAX_WORD) {
+                found.add(text.subSequence(start, i).toString().toLowerCase());
+            }
+            start = -1;
+        }
+    }
+
+    /**
+     * Writes a small positive number in as few bytes as it needs, seven
+     * bits at a time.
+     */
+    private static void writeNumber(final DataOutputStream out, final int number) throws IOException {
+
+        int rest = number;
+        while (rest >= 0x80) {
+            out.writeByte(rest & 0x7f | 0x80);
+            rest >>>= 7;
+        }
+        out.writeByte(rest);
+    }
+
+
+    /**
+     * An email in the index, or waiting to be. One with no UID is waiting to
+     * be dropped.
+     */
+    private static class Document {
+
+        private long arrival;
+        private int id;
+        private Message message;
+        private long octets;
+        private final String uid;
+
+        private Document(final Message message, final String uid, final long octets, final long arrival) {
+
+            this.message = message;
+            this.uid = uid;
+            this.octets = octets;
+            this.arrival = arrival;
+        }
+    }
+
+
+    /**
+     * The emails a word appears in, in increasing order.
+     */
+    private static class Postings {
+
+        private int[] ids;
+        private int size = 0;
+
+        private Postings(final int capacity) {
+
+            ids = new int[Math.max(1, capacity)];
+        }
+
+        private void add(final int id) {
+
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * Keeps only the ids that are also in this list, skipping ahead
+         * with binary searches.
+         *
+         * @param found ids in increasing order
+         * @param count how many of them there are
+         * @return how many are left, at the start of the array
+         */
+        private int retain(final int[] found, final int count) {
+
+            int kept = 0;
+            int from = 0;
+            for (int i = 0; i < count && from < size; i++) {
+                final int at = Arrays.binarySearch(ids, from, size, found[i]);
+                if (at >= 0) {
+                    found[kept++] = found[i];
+                    from = at + 1;
+                } else {
+                    from = -at - 1;
+                }
+            }
+            return kept;
+        }
+    }
+}
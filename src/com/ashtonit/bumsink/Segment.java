@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.File;
+
+
+/**
+ * One file of the log kept by {@link SegmentStorage}, and how much of it is
+ * taken up by records that are no longer needed. Only touched with the
+ * storage locked.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Segment {
+
+    private long dead = 0;
+    private final File file;
+    private final int number;
+    private long size;
+
+    /**
+     * @param file
+     * @param number
+     * @param size
+     */
+    Segment(final File file, final int number, final long size) {
+
+        this.file = file;
+        this.number = number;
+        this.size = size;
+    }
+
+    void addDead(final long octets) {
+
+        dead += octets;
+    }
+
+    void addSize(final long octets) {
+
+        size += octets;
+    }
+
+    long getDead() {
+
+        return dead;
+    }
+
+    File getFile() {
+
+        return file;
+    }
+
+    int getNumber() {
+
+        return number;
+    }
+
+    long getSize() {
+
+        return size;
+    }
+
+    void setSize(final long size) {
+
+        this.size = size;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * An email saved by {@link SegmentStorage}, somewhere in the middle of a
+ * segment. The compactor may move it to another segment at any time, so its
+ * whereabouts are guarded by the message's own lock.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class SegmentMessage extends Message {
+
+    private final long id;
+    private final long length;
+    private long offset;
+    private final int overhead;
+    private Segment segment;
+    private final SegmentStorage storage;
+
+    /**
+     * @param storage
+     * @param id
+     * @param segment
+     * @param offset of the first byte of the email in the segment
+     * @param length
+     * @param overhead the octets in the email's record before the email
+     */
+    SegmentMessage(final SegmentStorage storage, final long id, final Segment segment, final long offset,
+        final long length, final int overhead) {
+
+        this.storage = storage;
+        this.id = id;
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+        this.overhead = overhead;
+    }
+
+    /**
+     * A segment that is deleted by the compactor after this returns can
+     * still be read through the channel.
+     *
+     * @see Message#getChannel()
+     */
+    @Override
+    synchronized FileChannel getChannel() throws IOException {
+
+        final FileChannel channel = new FileInputStream(segment.getFile()).getChannel();
+        try {
+            channel.position(offset);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    long getId() {
+
+        return id;
+    }
+
+    /**
+     * @see Message#getLength()
+     */
+    @Override
+    long getLength() {
+
+        return length;
+    }
+
+    /**
+     * @return the octets the email's record takes up in its segment
+     */
+    long getRecordSize() {
+
+        return overhead + length;
+    }
+
+    synchronized Segment getSegment() {
+
+        return segment;
+    }
+
+    /**
+     * Records that the compactor has copied the email to another segment.
+     *
+     * @param segment
+     * @param offset
+     */
+    synchronized void move(final Segment segment, final long offset) {
+
+        this.segment = segment;
+        this.offset = offset;
+    }
+
+    /**
+     * Appends a tombstone for the email to the log. The space it takes up is
+     * reclaimed when its segment is compacted.
+     *
+     * @see Message#purge()
+     */
+    @Override
+    void purge() {
+
+        try {
+            storage.tombstone(this);
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
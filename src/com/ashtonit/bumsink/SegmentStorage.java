@@ -0,0 +1,503 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.COMPACT_THRESHOLD;
+import static com.ashtonit.bumsink.Main.SEGMENT_SIZE;
+import static com.ashtonit.bumsink.Main.err;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+
+/**
+ * Appends emails to a log of large segment files instead of giving each one
+ * a file of its own. Every email is preceded by a record holding its id,
+ * arrival time, header size, length and {@link Envelope}; deleting an email
+ * appends a tombstone holding just its id. Records written before envelopes
+ * were kept have none, and are still read. A new segment is started once the
+ * current one reaches {@link Main#SEGMENT_SIZE} bytes.
+ * <p>
+ * The {@link Compactor} copies the live emails out of any older segment that
+ * is at least {@link Main#COMPACT_THRESHOLD} percent dead and then deletes
+ * it. Tombstones are copied too for as long as the email they delete is
+ * still on disk somewhere. Ids are never reused, so if the compactor is
+ * interrupted the later of two copies of an email wins at startup.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class SegmentStorage implements Storage {
+
+    private static final byte ENVELOPED = 'E';
+    private static final int ENVELOPED_HEADER = 37;
+    private static final byte MESSAGE = 'M';
+    private static final int MESSAGE_HEADER = 33;
+    private static final String SUFFIX = ".seg";
+    private static final byte TOMBSTONE = 'T';
+    private static final int TOMBSTONE_SIZE = 9;
+
+    private Segment active;
+    private final Map<Long, Segment> dead = new HashMap<Long, Segment>();
+    private final File directory;
+    private final Map<Long, SegmentMessage> live = new HashMap<Long, SegmentMessage>();
+    private long nextId = 1;
+    private FileChannel out;
+    private boolean rolled = false;
+    private final ByteBuffer record = ByteBuffer.allocate(ENVELOPED_HEADER);
+    private final SortedMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    /**
+     * @param directory where the segments are kept
+     * @throws BumsinkException
+     */
+    SegmentStorage(final File directory) throws BumsinkException {
+
+        this.directory = directory;
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        if (!directory.isDirectory()) {
+            throw new BumsinkException("Not a directory: " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Everything a restart needs is in the segments themselves, so a
+     * checkpoint only forces out the one being written to.
+     *
+     * @see Storage#checkpoint(Index)
+     */
+    @Override
+    public void checkpoint(final Index index) throws IOException {
+
+        sync();
+    }
+
+    /**
+     * Compacts every segment but the one being written to that has enough
+     * dead space in it.
+     *
+     * @throws IOException
+     */
+    void compact() throws IOException {
+
+        final List<Segment> candidates = new ArrayList<Segment>();
+        synchronized (this) {
+            for (final Segment segment : segments.values()) {
+                if (segment != active && segment.getDead() > 0
+                    && segment.getDead() * 100 >= segment.getSize() * COMPACT_THRESHOLD) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (final Segment segment : candidates) {
+            compact(segment);
+        }
+    }
+
+    /**
+     * Scans the segments on {@link Main#RECOVERY_THREADS} threads. Saves wait
+     * until this is done.
+     *
+     * @see Storage#load(Index)
+     */
+    @Override
+    public synchronized void load(final Index index) throws IOException {
+
+        for (final File file : directory.listFiles()) {
+            final String name = file.getName();
+            if (file.isFile() && name.endsWith(SUFFIX)) {
+                try {
+                    final int number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                    segments.put(number, new Segment(file, number, 0));
+                } catch (final NumberFormatException e) {
+                    err("Not a segment: " + file.getAbsolutePath());
+                }
+            }
+        }
+
+        final List<Callable<Scan>> tasks = new ArrayList<Callable<Scan>>();
+        for (final Segment segment : segments.values()) {
+            tasks.add(new Callable<Scan>() {
+
+                public Scan call() throws IOException {
+
+                    return scan(segment);
+                }
+            });
+        }
+        final SortedMap<Long, SegmentMessage> found = new TreeMap<Long, SegmentMessage>();
+        final Map<Long, long[]> metadata = new HashMap<Long, long[]>();
+        final Set<Long> tombstones = new HashSet<Long>();
+        for (final Scan scan : Store.runAll(tasks)) {
+            for (final SegmentMessage message : scan.found.values()) {
+                final SegmentMessage older = found.put(message.getId(), message);
+                if (older != null) {
+                    older.getSegment().addDead(older.getRecordSize());
+                }
+            }
+            metadata.putAll(scan.metadata);
+            tombstones.addAll(scan.tombstones);
+            nextId = Math.max(nextId, scan.nextId);
+        }
+        for (final Long id : tombstones) {
+            final SegmentMessage message = found.remove(id);
+            if (message != null) {
+                message.getSegment().addDead(message.getRecordSize());
+                dead.put(id, message.getSegment());
+            }
+        }
+        for (final SegmentMessage message : found.values()) {
+            final long[] meta = metadata.get(message.getId());
+            live.put(message.getId(), message);
+            message.setHeaderOctets(meta[1]);
+            index.add(message, Long.toString(message.getId()), message.getLength(), meta[0]);
+        }
+
+        if (segments.isEmpty()) {
+            open(1);
+        } else {
+            active = segments.get(segments.lastKey());
+            out = FileChannel.open(active.getFile().toPath(), StandardOpenOption.WRITE);
+            out.position(active.getSize());
+        }
+    }
+
+    /**
+     * @see Storage#save(Spool, Index)
+     */
+    @Override
+    public Message save(final Spool spool, final Index index) throws IOException {
+
+        final long octets = spool.getLength();
+        final long header = spool.getHeaderOctets();
+        final Envelope envelope = spool.getEnvelope();
+        final byte[] bytes = envelope.toBytes();
+        final int overhead = ENVELOPED_HEADER + bytes.length;
+        final long arrival = System.currentTimeMillis();
+        final SegmentMessage message;
+        synchronized (this) {
+            roll();
+            final long id = nextId++;
+            final long start = active.getSize();
+            record.clear();
+            record.put(ENVELOPED).putLong(id).putLong(arrival).putLong(header).putLong(octets).putInt(bytes.length);
+            record.flip();
+            try {
+                write(record);
+                write(ByteBuffer.wrap(bytes));
+                spool.commit(out);
+            } catch (final IOException e) {
+                out.truncate(start);
+                throw e;
+            }
+            active.addSize(overhead + octets);
+            message = new SegmentMessage(this, id, active, start + overhead, octets, overhead);
+            message.setHeaderOctets(header);
+            message.setEnvelope(envelope);
+            live.put(id, message);
+        }
+        index.add(message, Long.toString(message.getId()), octets, arrival);
+        return message;
+    }
+
+    /**
+     * Forces the segment being written to out to the disk, and the directory
+     * too if a segment has been started since the last sync. Full segments
+     * are forced as they are closed.
+     *
+     * @see Storage#sync()
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+
+        out.force(true);
+        if (rolled) {
+            FileStorage.force(directory);
+            rolled = false;
+        }
+    }
+
+    /**
+     * Deletes an email by appending a tombstone for it.
+     *
+     * @param message
+     * @throws IOException
+     */
+    synchronized void tombstone(final SegmentMessage message) throws IOException {
+
+        if (live.remove(message.getId()) == null) {
+            return;
+        }
+        final Segment segment = message.getSegment();
+        segment.addDead(message.getRecordSize());
+        dead.put(message.getId(), segment);
+        roll();
+        appendTombstone(message.getId());
+    }
+
+    private void appendTombstone(final long id) throws IOException {
+
+        final long start = active.getSize();
+        record.clear();
+        record.put(TOMBSTONE).putLong(id);
+        record.flip();
+        try {
+            write(record);
+        } catch (final IOException e) {
+            out.truncate(start);
+            throw e;
+        }
+        active.addSize(TOMBSTONE_SIZE);
+        active.addDead(TOMBSTONE_SIZE);
+    }
+
+    /**
+     * Copies what is still needed out of a segment, one record at a time so
+     * saves are never held up for long, then deletes it.
+     */
+    private void compact(final Segment segment) throws IOException {
+
+        final FileChannel in = new FileInputStream(segment.getFile()).getChannel();
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(ENVELOPED_HEADER);
+            final long size = segment.getSize();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                if (size - position < ENVELOPED_HEADER) {
+                    buffer.limit((int) (size - position));
+                }
+                read(in, buffer, position);
+                final long id = buffer.getLong(1);
+                final byte type = buffer.get(0);
+                if (type == MESSAGE || type == ENVELOPED) {
+                    final long length = buffer.getLong(25);
+                    final int overhead = type == MESSAGE ? MESSAGE_HEADER : ENVELOPED_HEADER + buffer.getInt(33);
+                    synchronized (this) {
+                        final SegmentMessage message = live.get(id);
+                        if (message != null && message.getSegment() == segment) {
+                            roll();
+                            final long start = active.getSize();
+                            try {
+                                transfer(in, position, overhead + length);
+                            } catch (final IOException e) {
+                                out.truncate(start);
+                                throw e;
+                            }
+                            active.addSize(overhead + length);
+                            message.move(active, start + overhead);
+                        } else if (dead.get(id) == segment) {
+                            dead.remove(id);
+                        }
+                    }
+                    position += overhead + length;
+                } else {
+                    synchronized (this) {
+                        final Segment holder = dead.get(id);
+                        if (holder != null && holder != segment) {
+                            roll();
+                            appendTombstone(id);
+                        }
+                    }
+                    position += TOMBSTONE_SIZE;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        synchronized (this) {
+            // The copies must be safe before the originals go.
+            sync();
+            segments.remove(segment.getNumber());
+        }
+        if (!segment.getFile().delete()) {
+            err("Could not delete " + segment.getFile().getAbsolutePath());
+        }
+    }
+
+    private void open(final int number) throws IOException {
+
+        final File file = new File(directory, String.format("%010d", number) + SUFFIX);
+        active = new Segment(file, number, 0);
+        segments.put(number, active);
+        out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * @param position where the record starts
+     * @param overhead the octets in the record before the email
+     * @return the envelope in the record, which is none in a record written
+     *         before envelopes were kept, or null if it is damaged
+     */
+    private Envelope readEnvelope(final FileChannel channel, final long position, final int overhead)
+        throws IOException {
+
+        if (overhead == MESSAGE_HEADER) {
+            return Envelope.NONE;
+        }
+        final ByteBuffer bytes = ByteBuffer.allocate(overhead - ENVELOPED_HEADER);
+        read(channel, bytes, position + ENVELOPED_HEADER);
+        try {
+            return Envelope.read(bytes.array());
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a new segment if the current one is full.
+     */
+    private void roll() throws IOException {
+
+        if (active.getSize() >= SEGMENT_SIZE) {
+            out.force(true);
+            out.close();
+            open(active.getNumber() + 1);
+            rolled = true;
+        }
+    }
+
+    /**
+     * Reads the records of a segment at startup, cutting off anything after
+     * the last complete one. Segments are scanned in parallel, so this only
+     * touches the segment it is given.
+     */
+    private Scan scan(final Segment segment) throws IOException {
+
+        final Scan scan = new Scan();
+        final FileChannel channel = FileChannel.open(segment.getFile().toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(ENVELOPED_HEADER);
+            final long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                if (size - position < ENVELOPED_HEADER) {
+                    buffer.limit((int) (size - position));
+                }
+                read(channel, buffer, position);
+                final byte type = buffer.get(0);
+                if (type == TOMBSTONE && buffer.limit() >= TOMBSTONE_SIZE) {
+                    final long id = buffer.getLong(1);
+                    scan.tombstones.add(id);
+                    scan.nextId = Math.max(scan.nextId, id + 1);
+                    segment.addDead(TOMBSTONE_SIZE);
+                    position += TOMBSTONE_SIZE;
+                } else if (type == MESSAGE && buffer.limit() >= MESSAGE_HEADER
+                    || type == ENVELOPED && buffer.limit() == ENVELOPED_HEADER) {
+                    final long id = buffer.getLong(1);
+                    final long length = buffer.getLong(25);
+                    final int envelopeLength = type == MESSAGE ? 0 : buffer.getInt(33);
+                    if (envelopeLength < 0
+                        || type == ENVELOPED && envelopeLength > size - position - ENVELOPED_HEADER) {
+                        break;
+                    }
+                    final int overhead = type == MESSAGE ? MESSAGE_HEADER : ENVELOPED_HEADER + envelopeLength;
+                    if (length < 0 || length > size - position - overhead) {
+                        break;
+                    }
+                    final Envelope envelope = readEnvelope(channel, position, overhead);
+                    if (envelope == null) {
+                        break;
+                    }
+                    final SegmentMessage message = new SegmentMessage(this, id, segment, position + overhead, length,
+                        overhead);
+                    message.setEnvelope(envelope);
+                    final SegmentMessage older = scan.found.put(id, message);
+                    if (older != null) {
+                        segment.addDead(older.getRecordSize());
+                    }
+                    scan.metadata.put(id, new long[] { buffer.getLong(9), buffer.getLong(17) });
+                    scan.nextId = Math.max(scan.nextId, id + 1);
+                    position += overhead + length;
+                } else {
+                    break;
+                }
+            }
+            if (position < size) {
+                err("Truncating " + segment.getFile().getAbsolutePath() + " at " + position);
+                channel.truncate(position);
+            }
+            segment.setSize(position);
+        } finally {
+            channel.close();
+        }
+        return scan;
+    }
+
+    private void transfer(final FileChannel in, final long position, final long count) throws IOException {
+
+        long done = 0;
+        while (done < count) {
+            final long n = in.transferTo(position + done, count - done, out);
+            if (n <= 0) {
+                throw new IOException("Segment is shorter than expected");
+            }
+            done += n;
+        }
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Fills the buffer from the given position.
+     */
+    private static void read(final FileChannel channel, final ByteBuffer buffer, final long position)
+        throws IOException {
+
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, offset);
+            if (n < 0) {
+                throw new IOException("Segment is shorter than expected");
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * What {@link SegmentStorage#scan(Segment)} found in one segment.
+     */
+    private static class Scan {
+
+        private final Map<Long, SegmentMessage> found = new HashMap<Long, SegmentMessage>();
+        private final Map<Long, long[]> metadata = new HashMap<Long, long[]>();
+        private long nextId = 1;
+        private final List<Long> tombstones = new ArrayList<Long>();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.ALL_THREADS;
+import static com.ashtonit.bumsink.Main.ENGINE;
+import static com.ashtonit.bumsink.Main.ENGINE_NIO;
+import static com.ashtonit.bumsink.Main.ENGINE_VIRTUAL;
+import static com.ashtonit.bumsink.Main.RUNNING;
+import static com.ashtonit.bumsink.Main.SO_TIMEOUT;
+import static com.ashtonit.bumsink.Main.info;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+
+import com.ashtonit.bumsink.Events.AcceptEvent;
+
+
+/**
+ * Accepts connections and hands them to the configured engine.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+abstract class Server extends Thread {
+
+    private final ServerSocket serverSocket;
+
+    /**
+     * @param threadGroup
+     * @param name
+     * @param host
+     * @param port
+     * @param backlog
+     * @throws BumsinkException
+     */
+    Server(final ThreadGroup threadGroup, final String name, final String host, final int port, final int backlog)
+        throws BumsinkException {
+
+        super(threadGroup, name);
+        try {
+            final InetAddress inetAddress = InetAddress.getByName(host);
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(inetAddress, port), backlog);
+            serverSocket.setSoTimeout(SO_TIMEOUT);
+        } catch (final UnknownHostException e) {
+            throw new BumsinkException(e);
+        } catch (final IOException e) {
+            throw new BumsinkException(e);
+        }
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        info(getClass().getSimpleName() + " started.");
+        while (RUNNING) {
+            try {
+                final Socket socket = serverSocket.accept();
+                final AcceptEvent event = new AcceptEvent();
+                event.begin();
+                if (ENGINE_NIO.equals(ENGINE)) {
+                    EventLoop.next().register(socket.getChannel(), this);
+                } else if (ENGINE_VIRTUAL.equals(ENGINE)) {
+                    Thread.ofVirtual().name(socket.toString()).start(new SocketConnection(socket, this));
+                } else {
+                    final Thread thread = new Thread(ALL_THREADS, new SocketConnection(socket, this), socket.toString());
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.server = getName();
+                    event.remote = String.valueOf(socket.getRemoteSocketAddress());
+                    event.commit();
+                }
+            } catch (final SocketTimeoutException e) {
+                // Do nothing.
+            } catch (final IOException e) {
+                e.printStackTrace();
+            } catch (final Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Creates the protocol session for a newly accepted connection.
+     *
+     * @param connection
+     * @return the session
+     * @throws BumsinkException
+     */
+    abstract Session newSession(Connection connection) throws BumsinkException;
+}
@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.IOException;
+
+
+/**
+ * The protocol side of a conversation with a single client. A session is
+ * fed one line at a time by its {@link Connection} and never reads from the
+ * network itself, so the same session runs on a thread of its own or on an
+ * {@link EventLoop}.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+interface Session {
+
+    /**
+     * Called once when the connection ends, however it ends.
+     */
+    void close();
+
+    /**
+     * Called once when the client connects, before any line is read.
+     *
+     * @throws IOException
+     */
+    void open() throws IOException;
+
+    /**
+     * Called for each line read from the client, without its line
+     * terminator. The line is reused for the next one as soon as this
+     * returns, so don't hang on to it.
+     *
+     * @param line
+     * @throws IOException
+     */
+    void read(Line line) throws IOException;
+
+    /**
+     * Called with raw bytes from the client once the session has asked for
+     * them with {@link Connection#readRaw(long)}, as many times as it takes
+     * for them all to arrive. The bytes are reused as soon as this returns.
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void readRaw(byte[] bytes, int offset, int length) throws IOException;
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.ALL_THREADS;
+import static com.ashtonit.bumsink.Main.STORAGE;
+import static com.ashtonit.bumsink.Main.STORAGE_DEDUP;
+import static com.ashtonit.bumsink.Main.STORAGE_SEGMENT;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * One of the directories in {@link Main#MAIL_DIR}, with its own storage,
+ * index and writer thread, so shards on different disks write in parallel.
+ * The first shard names its threads and UIDs exactly as a store with a
+ * single directory does.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Shard {
+
+    private static final String DEDUP_DIR = ".dedup";
+    private static final String SEGMENT_DIR = ".segments";
+    private static final String SPOOL_DIR = ".spool";
+
+    private final Compactor compactor;
+    private final Index index;
+    private final int number;
+    private final File spoolDirectory;
+    private final Storage storage;
+    private final StoreWriter writer;
+
+    /**
+     * @param directory
+     * @param number the position of the directory in the list, from 0
+     * @param cache where to put emails as they are saved, or null
+     * @param recipients where to index emails by recipient
+     * @param feed where to announce emails as they are saved
+     * @param search where to index emails as they are saved, or null
+     * @throws BumsinkException
+     */
+    Shard(final File directory, final int number, final MessageCache cache, final Recipients recipients,
+        final Feed feed, final SearchIndex search) throws BumsinkException {
+
+        this.number = number;
+        index = new Index() {
+
+            void add(final Message message, final String uid, final long octets, final long arrival) {
+
+                super.add(message, uid, octets, arrival);
+                recipients.add(message, getUid(uid), octets, arrival);
+                // Emails loaded from disk are not news
+                if (Thread.currentThread() == writer) {
+                    feed.publish(message, getUid(uid), octets, arrival);
+                    if (search != null) {
+                        search.add(message, getUid(uid), octets, arrival);
+                    }
+                }
+            }
+        };
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        if (!directory.isDirectory()) {
+            throw new BumsinkException("Not a directory: " + directory.getAbsolutePath());
+        }
+        if (!directory.canRead()) {
+            throw new BumsinkException("Cannot read directory " + directory.getAbsolutePath());
+        }
+        if (!directory.canWrite()) {
+            throw new BumsinkException("Cannot write to directory " + directory.getAbsolutePath());
+        }
+        spoolDirectory = new File(directory, SPOOL_DIR);
+        if (!spoolDirectory.exists()) {
+            spoolDirectory.mkdir();
+        }
+        if (!spoolDirectory.isDirectory()) {
+            throw new BumsinkException("Not a directory: " + spoolDirectory.getAbsolutePath());
+        }
+        for (File file : spoolDirectory.listFiles()) {
+            // Left behind by sessions that never finished
+            file.delete();
+        }
+        if (STORAGE_SEGMENT.equals(STORAGE)) {
+            final SegmentStorage segments = new SegmentStorage(new File(directory, SEGMENT_DIR));
+            compactor = new Compactor(ALL_THREADS, segments);
+            storage = segments;
+        } else if (STORAGE_DEDUP.equals(STORAGE)) {
+            compactor = null;
+            storage = new DedupStorage(new File(directory, DEDUP_DIR));
+        } else {
+            compactor = null;
+            storage = new FileStorage(directory);
+        }
+        writer = new StoreWriter(ALL_THREADS, storage, index, cache);
+        if (number > 0) {
+            writer.setName(writer.getName() + "-" + number);
+            if (compactor != null) {
+                compactor.setName(compactor.getName() + "-" + number);
+            }
+        }
+        writer.start();
+    }
+
+    /**
+     * @throws IOException
+     * @see Storage#checkpoint(Index)
+     */
+    void checkpoint() throws IOException {
+
+        storage.checkpoint(index);
+    }
+
+    Index getIndex() {
+
+        return index;
+    }
+
+    /**
+     * @return the emails waiting to be written
+     */
+    int getQueueLength() {
+
+        return writer.getQueueLength();
+    }
+
+    /**
+     * @param uid as the shard's storage knows it
+     * @return the UID, made unique across all the shards
+     */
+    String getUid(final String uid) {
+
+        return number == 0 ? uid : number + ":" + uid;
+    }
+
+    /**
+     * Loads what is already on disk, then starts compacting if the storage
+     * needs it.
+     *
+     * @throws IOException
+     */
+    void load() throws IOException {
+
+        storage.load(index);
+        index.sort();
+        if (compactor != null) {
+            compactor.start();
+        }
+    }
+
+    /**
+     * @return an empty spool for an email that will be saved to this shard
+     */
+    Spool newSpool() {
+
+        return new Spool(spoolDirectory, STORAGE_DEDUP.equals(STORAGE) ? DedupStorage.ALGORITHM : null);
+    }
+
+    /**
+     * @param spool
+     * @return true if the spool came from {@link #newSpool()}
+     */
+    boolean owns(final Spool spool) {
+
+        return spool.getDirectory().equals(spoolDirectory);
+    }
+
+    /**
+     * @param spool
+     * @throws IOException
+     * @see StoreWriter#write(Spool)
+     */
+    void save(final Spool spool) throws IOException {
+
+        writer.write(spool);
+    }
+
+    /**
+     * @param spool
+     * @param callback
+     * @see StoreWriter#write(Spool, Store.Callback)
+     */
+    void save(final Spool spool, final Store.Callback callback) {
+
+        writer.write(spool, callback);
+    }
+
+    /**
+     * @see StoreWriter#shutdown()
+     */
+    void shutdown() {
+
+        writer.shutdown();
+    }
+}
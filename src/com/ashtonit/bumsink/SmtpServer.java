@@ -15,20 +15,9 @@
  */
 package com.ashtonit.bumsink;
 
-import static com.ashtonit.bumsink.Main.ALL_THREADS;
-import static com.ashtonit.bumsink.Main.RUNNING;
 import static com.ashtonit.bumsink.Main.SMTP_BACKLOG;
 import static com.ashtonit.bumsink.Main.SMTP_HOST;
 import static com.ashtonit.bumsink.Main.SMTP_PORT;
-import static com.ashtonit.bumsink.Main.SO_TIMEOUT;
-import static com.ashtonit.bumsink.Main.info;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
 
 
 /**
@@ -37,9 +26,7 @@ import java.net.UnknownHostException;
  * @author Bruce Ashton
  * @date 2013-11-05
  */
-class SmtpServer extends Thread {
-
-    private final ServerSocket serverSocket;
+class SmtpServer extends Server {
 
     /**
      * @param threadGroup
@@ -47,36 +34,16 @@ class SmtpServer extends Thread {
      */
     SmtpServer(final ThreadGroup threadGroup) throws BumsinkException {
 
-        super(threadGroup, SmtpServer.class.getName());
-        try {
-            final InetAddress inetAddress = InetAddress.getByName(SMTP_HOST);
-            serverSocket = new ServerSocket(SMTP_PORT, SMTP_BACKLOG, inetAddress);
-            serverSocket.setSoTimeout(SO_TIMEOUT);
-        } catch (final UnknownHostException e) {
-            throw new BumsinkException(e);
-        } catch (final IOException e) {
-            throw new BumsinkException(e);
-        }
+        super(threadGroup, SmtpServer.class.getName(), SMTP_HOST, SMTP_PORT, SMTP_BACKLOG);
     }
 
     /**
-     * @see Thread#run()
+     * @see Server#newSession(Connection)
      */
     @Override
-    public void run() {
+    Session newSession(final Connection connection) throws BumsinkException {
 
-        info("SmtpServer started.");
-        while (RUNNING) {
-            try {
-                final Socket socket = serverSocket.accept();
-                new SmtpSession(ALL_THREADS, socket).start();
-            } catch (final SocketTimeoutException e) {
-                // Do nothing.
-            } catch (final IOException e) {
-                e.printStackTrace();
-            } catch (final Throwable t) {
-                t.printStackTrace();
-            }
-        }
+        Metrics.SMTP_CONNECTIONS.increment();
+        return new SmtpSession(connection);
     }
 }
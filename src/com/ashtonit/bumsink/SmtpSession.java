@@ -15,99 +15,164 @@
  */
 package com.ashtonit.bumsink;
 
-import static com.ashtonit.bumsink.Main.DEBUG;
 import static com.ashtonit.bumsink.Main.EOL;
 import static com.ashtonit.bumsink.Main.SMTP_HOST;
+import static com.ashtonit.bumsink.Main.SMTP_SIZE;
 import static com.ashtonit.bumsink.Main.VERSION;
+import static com.ashtonit.bumsink.Main.debug;
 import static com.ashtonit.bumsink.Main.err;
-import static com.ashtonit.bumsink.Main.info;
+import static com.ashtonit.bumsink.Main.sampleSession;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.ashtonit.bumsink.Events.CommandEvent;
+import com.ashtonit.bumsink.Events.SessionEvent;
 
 
 /**
- * A SMTP connection with a single client.
+ * A SMTP connection with a single client. Replies are not flushed one by
+ * one; the {@link Connection} flushes them once it has handed over
+ * everything the client has sent so far, so a pipelined group of commands is
+ * answered with a single write.
+ * <p>
+ * Each email is saved with its {@link Envelope}, which the storage engine
+ * keeps alongside it, so POP3 logins can be given just their own emails.
  * 
  * @author Bruce Ashton
  * @date 2013-11-05
  */
-class SmtpSession extends Thread {
-
-    private static final String DATA = "DATA";
-    private static final String EOM = ".";
-    private static final String FROM = "MAIL FROM:";
+class SmtpSession implements Session {
+
+    private static final VerbTable VERBS = new VerbTable("SMTP");
+
+    private static final int BDAT = VERBS.add("BDAT");
+    private static final String BDAT_COMMAND = VERBS.getCommand(BDAT);
+    private static final String BIG = "552 Message size exceeds fixed maximum message size";
+    private static final int DATA = VERBS.add("DATA");
+    private static final String DATA_COMMAND = VERBS.getCommand(DATA);
+    private static final int EHLO = VERBS.add("EHLO");
+    private static final char EOM = '.';
+    private static final String FAILED = "451 Requested action aborted: local error in processing";
+    private static final String MAIL_FROM = "MAIL FROM:";
+    private static final int FROM = VERBS.add(MAIL_FROM);
     private static final String GREET = "220 BUMSink version " + VERSION;
-    private static final String HELO = "HELO";
+    private static final int HELO = VERBS.add("HELO");
     private static final String INT = "354 Intermediate";
-    private static final String NOOP = "NOOP";
+    private static final String LAST = "LAST";
+    private static final int NOOP = VERBS.add("NOOP");
     private static final String OK = "250 OK";
-    private static final String QUIT = "QUIT";
-    private static final String RCPT = "RCPT TO:";
-    private static final String RSET = "RSET";
+    private static final String PROTOCOL = "SMTP";
+    private static final int QUIT = VERBS.add("QUIT");
+    private static final String RCPT_TO = "RCPT TO:";
+    private static final int RCPT = VERBS.add(RCPT_TO);
+    private static final int RSET = VERBS.add("RSET");
+    private static final String SIZE = "SIZE=";
+    private static final String SYNTAX = "501 Syntax error in parameters or arguments";
     private static final String WTF = "500 Command not recognized";
 
-    private final StringBuilder email = new StringBuilder();
+    private boolean big = false;
+    private long chunk = 0;
+    private int commands = 0;
+    private final Connection connection;
     private boolean inData = false;
-    private final BufferedReader reader;
-    private final Socket socket;
+    private boolean last = false;
+    private final SessionEvent lifetime = new SessionEvent();
+    private final Set<String> recipients = new LinkedHashSet<String>();
+    private String sender;
+    private Spool spool;
     private final Store store;
-    private final BufferedWriter writer;
+    private final boolean tracing;
+    private final Writer writer;
+    private long written = 0;
 
     /**
-     * @param threadGroup
-     * @param socket
+     * @param connection
      * @throws BumsinkException
-     * @throws IOException
      */
-    SmtpSession(final ThreadGroup threadGroup, final Socket socket) throws BumsinkException {
+    SmtpSession(final Connection connection) throws BumsinkException {
 
-        super(threadGroup, socket.toString());
-        this.socket = socket;
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        } catch (final IOException e) {
-            throw new BumsinkException(e);
-        }
+        this.connection = connection;
+        writer = connection.getWriter();
         store = Store.getInstance();
-        setDaemon(true);
+        spool = store.newSpool();
+        tracing = sampleSession();
+        Metrics.SMTP_SESSIONS.increment();
+        lifetime.begin();
     }
 
     /**
-     * @see Thread#run()
+     * @see Session#close()
      */
-    @Override
-    public void run() {
+    public void close() {
 
-        try {
-            write(GREET);
-            String line = reader.readLine();
-            while (line != null) {
-                if (inData) {
-                    handleData(line);
-                } else {
-                    if (DEBUG) {
-                        info("read: " + line);
-                    }
-                    handle(line);
-                }
-                line = reader.readLine();
-            }
-        } catch (final IOException e) {
-            // Don't care
-        } finally {
-            if (!socket.isClosed()) {
-                try {
-                    socket.close();
-                } catch (final IOException e) {
-                    // Don't care
-                }
+        spool.discard();
+        Metrics.SMTP_SESSIONS.decrement();
+        Events.commit(lifetime, PROTOCOL, commands);
+    }
+
+    /**
+     * @see Session#open()
+     */
+    public void open() throws IOException {
+
+        write(GREET);
+        writer.flush();
+    }
+
+    /**
+     * @see Session#read(Line)
+     */
+    public void read(final Line line) throws IOException {
+
+        if (inData) {
+            handleData(line);
+        } else {
+            if (tracing) {
+                debug("read: ", line);
             }
+            handle(line);
+        }
+    }
+
+    /**
+     * Takes the next part of a BDAT chunk, exactly as it was sent.
+     *
+     * @see Session#readRaw(byte[], int, int)
+     */
+    public void readRaw(final byte[] bytes, final int offset, final int length) throws IOException {
+
+        if (fits(length)) {
+            spool.append(bytes, offset, length);
+        }
+        chunk -= length;
+        if (chunk == 0) {
+            endChunk();
+        }
+    }
+
+    private void bdat(final Line line) throws IOException {
+
+        final int size;
+        try {
+            size = line.intWord(1);
+        } catch (final NumberFormatException e) {
+            wtf(line, SYNTAX);
+            return;
+        }
+        if (size < 0) {
+            wtf(line, SYNTAX);
+            return;
+        }
+        chunk = size;
+        last = LAST.equalsIgnoreCase(line.word(2));
+        if (chunk == 0) {
+            endChunk();
+        } else {
+            connection.readRaw(chunk);
         }
     }
 
@@ -117,44 +182,132 @@ class SmtpSession extends Thread {
         write(INT);
     }
 
-    private void from() throws IOException {
+    private void ehlo() throws IOException {
+
+        write("250-" + SMTP_HOST);
+        write("250-PIPELINING");
+        write(SMTP_SIZE > 0 ? "250-SIZE " + SMTP_SIZE : "250-SIZE");
+        write("250-8BITMIME");
+        write("250 CHUNKING");
+    }
 
+    /**
+     * Saves the email, unless it was too big.
+     *
+     * @param command the command that sent it, for the event
+     */
+    private void end(final String command) throws IOException {
+
+        final CommandEvent event = new CommandEvent();
+        event.begin();
+        final long before = written;
+        final long length = spool.getLength();
+        final String from = sender == null ? "" : sender;
+        final String[] to = recipients.toArray(new String[recipients.size()]);
+        sender = null;
+        recipients.clear();
+        if (big) {
+            big = false;
+            write(BIG);
+        } else if (!spool.isEmpty()) {
+            spool.setEnvelope(new Envelope(from, to, spool.readSubject()));
+            save(command, event, before, length);
+            return;
+        } else {
+            write(OK);
+        }
+        Events.commit(event, PROTOCOL, command, length, written - before);
+    }
+
+    private void endChunk() throws IOException {
+
+        if (last) {
+            spool.endLine();
+            end(BDAT_COMMAND);
+        } else {
+            write(big ? BIG : OK);
+        }
+    }
+
+    /**
+     * Drops the email once it grows past {@link Main#SMTP_SIZE}, though the
+     * rest of it still has to be read.
+     *
+     * @param count the bytes about to be appended
+     * @return false if the email is, or has just become, too big
+     */
+    private boolean fits(final long count) {
+
+        if (!big && SMTP_SIZE > 0 && spool.getLength() + count > SMTP_SIZE) {
+            big = true;
+            spool.discard();
+        }
+        return !big;
+    }
+
+    private void from(final Line line) throws IOException {
+
+        sender = Recipients.address(line.toString().substring(MAIL_FROM.length()));
+        recipients.clear();
+        if (SMTP_SIZE > 0) {
+            for (int i = 1; i < line.words(); i++) {
+                final String word = line.word(i);
+                if (word.regionMatches(true, 0, SIZE, 0, SIZE.length())) {
+                    try {
+                        if (Long.parseLong(word.substring(SIZE.length())) > SMTP_SIZE) {
+                            write(BIG);
+                            return;
+                        }
+                    } catch (final NumberFormatException e) {
+                        wtf(line, SYNTAX);
+                        return;
+                    }
+                }
+            }
+        }
         write(OK);
     }
 
-    private void handle(final String line) throws IOException {
+    private void handle(final Line line) throws IOException {
 
-        if (line.startsWith(HELO)) {
+        final int verb = VERBS.get(line);
+        final CommandEvent event = new CommandEvent();
+        event.begin();
+        final long before = written;
+        final long start = System.nanoTime();
+        if (verb == HELO) {
             helo();
-        } else if (line.startsWith(FROM)) {
-            from();
-        } else if (line.startsWith(RCPT)) {
-            rcpt();
-        } else if (line.startsWith(DATA)) {
+        } else if (verb == EHLO) {
+            ehlo();
+        } else if (verb == FROM) {
+            from(line);
+        } else if (verb == RCPT) {
+            rcpt(line);
+        } else if (verb == DATA) {
             data();
-        } else if (line.startsWith(NOOP)) {
+        } else if (verb == BDAT) {
+            bdat(line);
+        } else if (verb == NOOP) {
             noop();
-        } else if (line.startsWith(RSET)) {
+        } else if (verb == RSET) {
             rset();
-        } else if (line.startsWith(QUIT)) {
+        } else if (verb == QUIT) {
             quit();
         } else {
-            wtf(line);
+            wtf(line, WTF);
         }
+        VERBS.time(verb, System.nanoTime() - start);
+        commands++;
+        Events.commit(event, PROTOCOL, VERBS.getCommand(verb), line.length() + EOL.length(), written - before);
     }
 
-    private void handleData(final String line) throws IOException {
+    private void handleData(final Line line) throws IOException {
 
-        if (EOM.equals(line)) {
+        if (line.is(EOM)) {
             inData = false;
-            write(OK);
-            if (email.length() > 0) {
-                store.save(email.toString());
-            }
-            email.setLength(0);
-        } else {
-            email.append(line);
-            email.append(EOL);
+            end(DATA_COMMAND);
+        } else if (fits(line.length() + EOL.length())) {
+            spool.append(line);
         }
     }
 
@@ -171,32 +324,92 @@ class SmtpSession extends Thread {
     private void quit() throws IOException {
 
         write("221 OK");
-        socket.close();
+        writer.flush();
+        connection.close();
     }
 
-    private void rcpt() throws IOException {
+    private void rcpt(final Line line) throws IOException {
 
+        recipients.add(Recipients.address(line.toString().substring(RCPT_TO.length())));
         write(OK);
     }
 
     private void rset() throws IOException {
 
-        email.setLength(0);
+        big = false;
+        sender = null;
+        recipients.clear();
+        spool.discard();
         write(OK);
     }
 
+    /**
+     * Hands the email to the store and replies once it is saved, or with a
+     * transient failure if it couldn't be, so the client can try again. On a
+     * connection that shares its thread, the session is suspended rather
+     * than blocking the thread through the group commit, and the reply is
+     * sent when the store calls back.
+     */
+    private void save(final String command, final CommandEvent event, final long before, final long length)
+        throws IOException {
+
+        final Spool saving = spool;
+        spool = store.newSpool();
+        final long start = System.nanoTime();
+        if (!connection.suspend()) {
+            IOException error = null;
+            try {
+                store.save(saving);
+            } catch (final IOException e) {
+                error = e;
+            }
+            saved(command, event, before, length, start, error);
+            return;
+        }
+        store.save(saving, new Store.Callback() {
+
+            public void saved(final IOException error) {
+
+                connection.resume(new Callable<Void>() {
+
+                    public Void call() throws IOException {
+
+                        SmtpSession.this.saved(command, event, before, length, start, error);
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param error why the email couldn't be saved, or null if it was
+     */
+    private void saved(final String command, final CommandEvent event, final long before, final long length,
+        final long start, final IOException error) throws IOException {
+
+        if (error == null) {
+            Metrics.COMMIT.record(System.nanoTime() - start);
+            write(OK);
+        } else {
+            err("Could not save an email: " + error);
+            write(FAILED);
+        }
+        Events.commit(event, PROTOCOL, command, length, written - before);
+    }
+
     private void write(final String line) throws IOException {
 
-        if (DEBUG) {
-            info("write: " + line);
+        if (tracing) {
+            debug("write: ", line);
         }
         writer.write(line + EOL);
-        writer.flush();
+        written += line.length() + EOL.length();
     }
 
-    private void wtf(final String line) throws IOException {
+    private void wtf(final Line line, final String reply) throws IOException {
 
         err("wtf: " + line);
-        write(WTF);
+        write(reply);
     }
 }
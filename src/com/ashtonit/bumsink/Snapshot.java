@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+/**
+ * The {@link Index} as it was at one moment. Shares its arrays with the
+ * index, but only the first {@link #size()} slots of them, which the index
+ * never writes to again.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Snapshot {
+
+    private final long[] arrivals;
+    private final Message[] messages;
+    private final long[] octets;
+    private final int size;
+    private final long totalOctets;
+    private final String[] uids;
+
+    /**
+     * @param arrivals
+     * @param messages
+     * @param octets
+     * @param uids
+     * @param size
+     * @param totalOctets
+     */
+    Snapshot(final long[] arrivals, final Message[] messages, final long[] octets, final String[] uids,
+        final int size, final long totalOctets) {
+
+        this.arrivals = arrivals;
+        this.messages = messages;
+        this.octets = octets;
+        this.uids = uids;
+        this.size = size;
+        this.totalOctets = totalOctets;
+    }
+
+    long getArrival(final int slot) {
+
+        check(slot);
+        return arrivals[slot];
+    }
+
+    Message getMessage(final int slot) {
+
+        check(slot);
+        return messages[slot];
+    }
+
+    long getOctets(final int slot) {
+
+        check(slot);
+        return octets[slot];
+    }
+
+    long getTotalOctets() {
+
+        return totalOctets;
+    }
+
+    String getUid(final int slot) {
+
+        check(slot);
+        return uids[slot];
+    }
+
+    int size() {
+
+        return size;
+    }
+
+    /**
+     * @param slot
+     * @throws IndexOutOfBoundsException if the slot is past the end
+     */
+    void check(final int slot) {
+
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("No message in slot " + slot);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+
+
+/**
+ * A blocking connection, read by a thread of its own.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class SocketConnection implements Connection, Runnable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private ByteBuffer direct;
+    private final InputStream in;
+    private final Line line = new Line();
+    private long raw = 0;
+    private final Server server;
+    private final Socket socket;
+    private final BufferedWriter writer;
+
+    /**
+     * @param socket
+     * @param server
+     * @throws BumsinkException
+     */
+    SocketConnection(final Socket socket, final Server server) throws BumsinkException {
+
+        this.server = server;
+        this.socket = socket;
+        try {
+            in = socket.getInputStream();
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        } catch (final IOException e) {
+            throw new BumsinkException(e);
+        }
+    }
+
+    /**
+     * @see Connection#close()
+     */
+    public void close() throws IOException {
+
+        socket.close();
+    }
+
+    /**
+     * @see Connection#getWriter()
+     */
+    public Writer getWriter() {
+
+        return writer;
+    }
+
+    /**
+     * @see Connection#readRaw(long)
+     */
+    public void readRaw(final long count) {
+
+        raw = count;
+    }
+
+    /**
+     * Runs the task on the calling thread, as {@link #suspend()} always
+     * refuses.
+     *
+     * @see Connection#resume(Callable)
+     */
+    public void resume(final Callable<Void> task) {
+
+        try {
+            task.call();
+        } catch (final Exception e) {
+            try {
+                // Ends the session, as its thread is reading from the socket
+                socket.close();
+            } catch (final IOException f) {
+                // Don't care
+            }
+        }
+    }
+
+    /**
+     * @see Runnable#run()
+     */
+    public void run() {
+
+        Session session = null;
+        try {
+            session = server.newSession(this);
+            session.open();
+            int offset = 0;
+            int limit = in.read(buffer);
+            while (limit >= 0) {
+                if (raw > 0) {
+                    offset = line.skipLf(buffer, offset, limit);
+                    final int count = (int) Math.min(raw, limit - offset);
+                    if (count > 0) {
+                        raw -= count;
+                        session.readRaw(buffer, offset, count);
+                        offset += count;
+                    }
+                } else {
+                    offset = line.frame(buffer, offset, limit);
+                    if (line.isComplete()) {
+                        session.read(line);
+                        line.reset();
+                    }
+                }
+                if (offset == limit) {
+                    // Answer everything read so far before waiting for more,
+                    // so a pipelined group of commands costs a single write.
+                    writer.flush();
+                    offset = 0;
+                    limit = in.read(buffer);
+                }
+            }
+        } catch (final BumsinkException e) {
+            e.printStackTrace();
+        } catch (final IOException e) {
+            // Don't care
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+            if (!socket.isClosed()) {
+                try {
+                    socket.close();
+                } catch (final IOException e) {
+                    // Don't care
+                }
+            }
+        }
+    }
+
+    /**
+     * @see Connection#send(ByteBuffer)
+     */
+    public void send(final ByteBuffer buffer) throws IOException {
+
+        writer.flush();
+        final SocketChannel channel = socket.getChannel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @see Connection#send(InputStream, long)
+     */
+    public void send(final InputStream stream, final long count) throws IOException {
+
+        try {
+            writer.flush();
+            final OutputStream out = socket.getOutputStream();
+            final byte[] bytes = new byte[BUFFER_SIZE];
+            long sent = 0;
+            while (sent < count) {
+                final int n = stream.read(bytes, 0, (int) Math.min(bytes.length, count - sent));
+                if (n < 0) {
+                    throw new IOException("Message is shorter than expected");
+                }
+                out.write(bytes, 0, n);
+                sent += n;
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @see Connection#send(FileChannel, long, long)
+     */
+    public void send(final FileChannel file, final long position, final long count) throws IOException {
+
+        try {
+            writer.flush();
+            final SocketChannel channel = socket.getChannel();
+            long sent = 0;
+            while (sent < count) {
+                long n = file.transferTo(position + sent, count - sent, channel);
+                if (n <= 0) {
+                    // On a virtual thread the socket is non-blocking underneath
+                    // and transferTo gives up rather than wait. A plain write
+                    // of the next chunk parks until the client catches up.
+                    n = copy(file, position + sent, count - sent, channel);
+                }
+                sent += n;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * The connection has a thread of its own, so the session may as well
+     * block.
+     *
+     * @see Connection#suspend()
+     */
+    public boolean suspend() {
+
+        return false;
+    }
+
+    private long copy(final FileChannel file, final long position, final long count, final SocketChannel channel)
+        throws IOException {
+
+        if (direct == null) {
+            direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        direct.clear();
+        if (count < direct.capacity()) {
+            direct.limit((int) count);
+        }
+        final int n = file.read(direct, position);
+        if (n <= 0) {
+            throw new IOException("File is shorter than expected");
+        }
+        direct.flip();
+        while (direct.hasRemaining()) {
+            channel.write(direct);
+        }
+        return n;
+    }
+}
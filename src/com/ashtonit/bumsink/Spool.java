@@ -0,0 +1,456 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.EOL;
+import static com.ashtonit.bumsink.Main.SPOOL_THRESHOLD;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * An email on its way into the {@link Store}. Lines are kept in memory until
+ * the email grows past {@link Main#SPOOL_THRESHOLD} bytes, after which they
+ * are written straight through to a temporary file in the store's spool
+ * directory. Nothing is visible in the store until {@link #commit(File)}
+ * renames the finished email into place, {@link #commitCompressed(File)}
+ * compresses it into place, or {@link #commit(FileChannel)} appends it to a
+ * segment.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class Spool {
+
+    private static final byte[] DOT = { '.' };
+    private static final byte[] EOL_BYTES = EOL.getBytes();
+
+    private final MessageDigest digest;
+    private final File directory;
+    private Envelope envelope = Envelope.NONE;
+    private File file;
+    private int hash = 0;
+    private long header = -1;
+    private long length = 0;
+    private boolean lineBlank = true;
+    private boolean lineStart = true;
+    private final Memory memory = new Memory();
+    private OutputStream out;
+    private boolean skipLf = false;
+
+    /**
+     * @param directory the spool directory, on the same file system as the
+     *            store
+     * @param algorithm the digest to take of each email, or null for none
+     */
+    Spool(final File directory, final String algorithm) {
+
+        this.directory = directory;
+        if (algorithm == null) {
+            digest = null;
+        } else {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    /**
+     * Appends a line and a line terminator.
+     *
+     * @param line
+     * @throws IOException
+     */
+    void append(final Line line) throws IOException {
+
+        final byte[] bytes = line.bytes();
+        final int count = line.length();
+        for (int i = 0; i < count; i++) {
+            hash = 31 * hash + (bytes[i] & 0xff);
+        }
+        for (int i = 0; i < EOL_BYTES.length; i++) {
+            hash = 31 * hash + EOL_BYTES[i];
+        }
+        if (digest != null) {
+            digest.update(bytes, 0, count);
+            digest.update(EOL_BYTES);
+        }
+        write(bytes, 0, count);
+        write(EOL_BYTES, 0, EOL_BYTES.length);
+        if (header < 0 && count == 0) {
+            header = length;
+        }
+    }
+
+    /**
+     * Appends raw bytes, as they arrive with BDAT. They are copied through a
+     * run at a time, so the email is stored just as if it had come with DATA:
+     * a line may end with CR, LF or CRLF, as with {@link Line}, and is stored
+     * ending with CRLF, and there is an extra dot in front of any line that
+     * starts with one. A CRLF split between two calls is still one line end.
+     *
+     * @param bytes
+     * @param offset
+     * @param count
+     * @throws IOException
+     */
+    void append(final byte[] bytes, final int offset, final int count) throws IOException {
+
+        final int end = offset + count;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            final byte b = bytes[i];
+            if (skipLf) {
+                skipLf = false;
+                if (b == '\n') {
+                    update(bytes, start, i - start);
+                    start = i + 1;
+                    continue;
+                }
+            }
+            if (lineStart && b == '.') {
+                update(bytes, start, i - start);
+                update(DOT, 0, 1);
+                hash = 31 * hash + '.';
+                start = i;
+            }
+            if (b == '\r' && i + 1 < end && bytes[i + 1] == '\n') {
+                hash = 31 * hash + '\r';
+                hash = 31 * hash + '\n';
+                i++;
+                lineEnded(length + i + 1 - start);
+            } else if (b == '\r' || b == '\n') {
+                // A bare line end, or a CR that may be followed by an LF in
+                // the next call
+                update(bytes, start, i - start);
+                terminate();
+                start = i + 1;
+                skipLf = b == '\r';
+                lineEnded(length);
+            } else {
+                hash = 31 * hash + (b & 0xff);
+                lineStart = false;
+                lineBlank = false;
+            }
+        }
+        update(bytes, start, end - start);
+    }
+
+    /**
+     * Moves the email to its final name in the store and resets the spool.
+     *
+     * @param target
+     * @throws IOException
+     */
+    void commit(final File target) throws IOException {
+
+        if (file == null) {
+            spill();
+        }
+        out.close();
+        out = null;
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        reset();
+    }
+
+    /**
+     * Appends the email to the end of a channel and resets the spool.
+     *
+     * @param target
+     * @throws IOException
+     */
+    void commit(final FileChannel target) throws IOException {
+
+        if (file == null) {
+            memory.writeTo(Channels.newOutputStream(target));
+        } else {
+            out.close();
+            out = null;
+            final FileChannel in = new FileInputStream(file).getChannel();
+            try {
+                long position = 0;
+                while (position < length) {
+                    final long count = in.transferTo(position, length - position, target);
+                    if (count <= 0) {
+                        throw new IOException("Spool file is shorter than expected");
+                    }
+                    position += count;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        discard();
+    }
+
+    /**
+     * Compresses the email into its final place in the store and resets the
+     * spool.
+     *
+     * @param target
+     * @throws IOException
+     * @see Compression
+     */
+    void commitCompressed(final File target) throws IOException {
+
+        final File temp = File.createTempFile("spool", null, directory);
+        try {
+            final InputStream in;
+            if (file == null) {
+                in = new ByteArrayInputStream(memory.toByteArray());
+            } else {
+                out.close();
+                out = null;
+                in = new FileInputStream(file);
+            }
+            try {
+                Compression.write(in, length, getHeaderOctets(), temp);
+            } finally {
+                in.close();
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+        discard();
+    }
+
+    /**
+     * Throws away anything appended since the last commit.
+     */
+    void discard() {
+
+        memory.reset();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (final IOException e) {
+                // Don't care
+            }
+            out = null;
+        }
+        if (file != null) {
+            file.delete();
+        }
+        reset();
+    }
+
+    /**
+     * Ends the last line, if raw bytes left it unfinished.
+     *
+     * @throws IOException
+     */
+    void endLine() throws IOException {
+
+        if (!lineStart) {
+            terminate();
+            lineStart = true;
+        }
+    }
+
+    /**
+     * Finishes the digest, so only call this once the email is complete.
+     *
+     * @return the digest of the email
+     */
+    byte[] getDigest() {
+
+        return digest.digest();
+    }
+
+    /**
+     * @return the same value as {@link String#hashCode()} would give for the
+     *         whole email read as ISO-8859-1
+     */
+    int getHash() {
+
+        return hash;
+    }
+
+    /**
+     * @return the spool directory the spool was created in
+     */
+    File getDirectory() {
+
+        return directory;
+    }
+
+    /**
+     * @return the envelope the email was delivered with
+     */
+    Envelope getEnvelope() {
+
+        return envelope;
+    }
+
+    /**
+     * @return the size of the headers and the blank line that ends them, or
+     *         of the whole email if it has no body
+     */
+    long getHeaderOctets() {
+
+        return header < 0 ? length : header;
+    }
+
+    long getLength() {
+
+        return length;
+    }
+
+    boolean isEmpty() {
+
+        return length == 0;
+    }
+
+    /**
+     * Reads the subject from the headers, which have to have been appended,
+     * so it can be kept in the {@link Envelope}.
+     *
+     * @return the subject, or an empty string if there isn't one
+     * @throws IOException
+     * @see Message#readSubject(InputStream, long)
+     */
+    String readSubject() throws IOException {
+
+        final InputStream in;
+        if (file == null) {
+            in = memory.getInputStream();
+        } else {
+            out.flush();
+            in = new FileInputStream(file);
+        }
+        try {
+            return Message.readSubject(in, getHeaderOctets());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param envelope for the storage engine to keep alongside the email
+     */
+    void setEnvelope(final Envelope envelope) {
+
+        this.envelope = envelope;
+    }
+
+    /**
+     * @return a copy of the email, or null if it is too big to be held in
+     *         memory
+     */
+    byte[] toByteArray() {
+
+        return file == null ? memory.toByteArray() : null;
+    }
+
+    private void reset() {
+
+        if (digest != null) {
+            digest.reset();
+        }
+        file = null;
+        hash = 0;
+        header = -1;
+        length = 0;
+        lineBlank = true;
+        lineStart = true;
+        skipLf = false;
+        envelope = Envelope.NONE;
+    }
+
+    /**
+     * @param position just after the line's terminator
+     */
+    private void lineEnded(final long position) {
+
+        if (header < 0 && lineBlank) {
+            header = position;
+        }
+        lineBlank = true;
+        lineStart = true;
+    }
+
+    private void spill() throws IOException {
+
+        file = File.createTempFile("spool", null, directory);
+        out = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(out);
+        memory.reset();
+    }
+
+    /**
+     * Appends a CRLF.
+     */
+    private void terminate() throws IOException {
+
+        for (int i = 0; i < EOL_BYTES.length; i++) {
+            hash = 31 * hash + EOL_BYTES[i];
+        }
+        update(EOL_BYTES, 0, EOL_BYTES.length);
+    }
+
+    private void update(final byte[] bytes, final int offset, final int count) throws IOException {
+
+        if (digest != null) {
+            digest.update(bytes, offset, count);
+        }
+        write(bytes, offset, count);
+    }
+
+    private void write(final byte[] bytes, final int offset, final int count) throws IOException {
+
+        length += count;
+        if (out == null && length > SPOOL_THRESHOLD) {
+            spill();
+        }
+        if (out == null) {
+            memory.write(bytes, offset, count);
+        } else {
+            out.write(bytes, offset, count);
+        }
+    }
+
+
+    /**
+     * The email so far, while it is small enough to be held in memory.
+     */
+    private static class Memory extends ByteArrayOutputStream {
+
+        /**
+         * @return a stream over what has been written, without copying it
+         */
+        private synchronized InputStream getInputStream() {
+
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.io.IOException;
+
+
+/**
+ * How the {@link Store} lays emails out on disk, chosen with the "storage"
+ * property. The store keeps the {@link Index} and the POP3 semantics; a
+ * storage engine only writes emails, each with its {@link Envelope}, and
+ * finds them again at startup. Deleting an email is up to its
+ * {@link Message#purge()}. Saves all come from the {@link StoreWriter}
+ * thread.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+interface Storage {
+
+    /**
+     * Records whatever makes the next {@link #load(Index)} quicker.
+     *
+     * @param index
+     * @throws IOException
+     */
+    void checkpoint(Index index) throws IOException;
+
+    /**
+     * Adds every email already on disk to the index. This runs in the
+     * background at startup, while emails may already be being saved.
+     *
+     * @param index
+     * @throws IOException
+     */
+    void load(Index index) throws IOException;
+
+    /**
+     * Writes a spooled email and adds it to the index. The spool is empty
+     * again afterwards and may be reused.
+     *
+     * @param spool
+     * @param index
+     * @return the email as it was added to the index
+     * @throws IOException
+     */
+    Message save(Spool spool, Index index) throws IOException;
+
+    /**
+     * Forces everything saved so far out to the disk.
+     *
+     * @throws IOException
+     */
+    void sync() throws IOException;
+}
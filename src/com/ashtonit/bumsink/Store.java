@@ -15,47 +15,98 @@
  */
 package com.ashtonit.bumsink;
 
+import static com.ashtonit.bumsink.Main.ALL_THREADS;
+import static com.ashtonit.bumsink.Main.CACHE_AGE;
+import static com.ashtonit.bumsink.Main.CACHE_SIZE;
 import static com.ashtonit.bumsink.Main.MAIL_DIR;
+import static com.ashtonit.bumsink.Main.POP_CATCHALL;
+import static com.ashtonit.bumsink.Main.RECOVERY_THREADS;
+import static com.ashtonit.bumsink.Main.RETENTION_AGE;
+import static com.ashtonit.bumsink.Main.RETENTION_BYTES;
+import static com.ashtonit.bumsink.Main.RETENTION_COUNT;
+import static com.ashtonit.bumsink.Main.SEARCH;
+import static com.ashtonit.bumsink.Main.info;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ashtonit.bumsink.Events.PurgeEvent;
 
 
 /**
+ * All the email, spread across one {@link Shard} for each directory in
+ * {@link Main#MAIL_DIR}. New emails go to each shard in turn. POP3 sessions
+ * see the shards merged into one mailbox in order of arrival, with emails
+ * that arrived at the same time in the order their directories are listed,
+ * or just the emails for the recipient they logged in as.
+ *
  * @author Bruce Ashton
  * @date 2013-11-05
  */
 class Store {
 
+    private static final Snapshot EMPTY = new Index(1).snapshot();
     private static final Object LOCK = new Object();
+    private static final int REAP_BATCH = 1000;
     private static Store store;
 
-    private final File directory;
-    private final List<Message> messages = Collections.synchronizedList(new ArrayList<Message>());
+    private final MessageCache cache;
+    private final Feed feed = new Feed();
+    private volatile MergedSnapshot merged;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Recipients recipients = new Recipients();
+    private final SearchIndex search;
+    private final CountDownLatch recovered = new CountDownLatch(1);
+    private IOException recoveryError;
+    private final Shard[] shards;
 
-    private Store(final String dirName) throws BumsinkException {
+    private Store(final String dirNames) throws BumsinkException {
 
-        directory = new File(dirName);
-        if (!directory.exists()) {
-            directory.mkdir();
-        }
-        if (!directory.isDirectory()) {
-            throw new BumsinkException("Not a directory: " + directory.getAbsolutePath());
-        }
-        if (!directory.canRead()) {
-            throw new BumsinkException("Cannot read directory " + directory.getAbsolutePath());
+        final List<File> directories = new ArrayList<File>();
+        final Set<File> seen = new HashSet<File>();
+        for (final String dirName : dirNames.split(",")) {
+            if (dirName.trim().length() == 0) {
+                continue;
+            }
+            final File directory = new File(dirName.trim());
+            if (!seen.add(directory.getAbsoluteFile().toPath().normalize().toFile())) {
+                throw new BumsinkException("Directory listed twice: " + directory.getAbsolutePath());
+            }
+            directories.add(directory);
         }
-        if (!directory.canWrite()) {
-            throw new BumsinkException("Cannot write to directory " + directory.getAbsolutePath());
+        if (directories.isEmpty()) {
+            throw new BumsinkException("No mail directory");
         }
-        for (File file : directory.listFiles()) {
-            messages.add(new Message(file));
+        cache = CACHE_SIZE > 0 ? new MessageCache(CACHE_SIZE, CACHE_AGE) : null;
+        search = SEARCH ? new SearchIndex(ALL_THREADS, new File(directories.get(0), SearchIndex.FILE)) : null;
+        shards = new Shard[directories.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(directories.get(i), i, cache, recipients, feed, search);
         }
+
+        final Thread recovery = new Thread(ALL_THREADS, "Recovery") {
+
+            public void run() {
+
+                recover();
+            }
+        };
+        recovery.setDaemon(true);
+        recovery.start();
     }
 
     static Store getInstance() throws BumsinkException {
@@ -68,63 +119,384 @@ class Store {
         return store;
     }
 
-    Message getMessage(final int msgNum) throws BumsinkException {
+    /**
+     * Waits until every email that was already on disk at startup is in the
+     * store. Emails can be saved before then, but POP3 clients would see an
+     * incomplete mailbox.
+     *
+     * @throws BumsinkException if the existing emails could not be loaded
+     */
+    void awaitRecovery() throws BumsinkException {
 
-        final Message message = messages.get(msgNum - 1);
-        if (message == null) {
-            throw new BumsinkException("No message found");
+        while (recovered.getCount() > 0) {
+            try {
+                recovered.await();
+            } catch (final InterruptedException e) {
+                // Don't care
+            }
+        }
+        if (recoveryError != null) {
+            throw new BumsinkException(recoveryError);
         }
-        return message;
     }
 
-    int getMsgCount() {
+    /**
+     * Records what makes the next startup quicker. Does nothing until
+     * recovery has finished.
+     *
+     * @throws IOException
+     */
+    void checkpoint() throws IOException {
 
-        return messages.size();
+        if (recovered.getCount() == 0 && recoveryError == null) {
+            for (final Shard shard : shards) {
+                shard.checkpoint();
+            }
+            if (search != null) {
+                search.save();
+            }
+        }
     }
 
-    long getMsgOctets() {
+    /**
+     * Looks an email up by the UID the store gives it, without merging the
+     * shards.
+     *
+     * @param uid as in a {@link #snapshot(String)}
+     * @return a snapshot of just that email, or null if there isn't one
+     * @see Shard#getUid(String)
+     */
+    Snapshot find(final String uid) {
 
-        int total = 0;
-        for (final Message message : messages) {
+        final int colon = uid.indexOf(':');
+        if (colon > 0) {
             try {
-                total += message.getOctets();
-            } catch (BumsinkException e) {
-                e.printStackTrace();
+                final int number = Integer.parseInt(uid.substring(0, colon));
+                if (number > 0 && number < shards.length) {
+                    final Snapshot found = shards[number].getIndex().find(uid.substring(colon + 1));
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            } catch (final NumberFormatException e) {
+                // Not a shard number
+            }
+        }
+        return shards[0].getIndex().find(uid);
+    }
+
+    /**
+     * @return the message cache, or null if there isn't one
+     */
+    MessageCache getCache() {
+
+        return cache;
+    }
+
+    /**
+     * @param message
+     * @return the whole message from the cache, ready to send, or null if it
+     *         isn't there
+     */
+    ByteBuffer getCached(final Message message) {
+
+        return cache == null ? null : cache.get(message);
+    }
+
+    Feed getFeed() {
+
+        return feed;
+    }
+
+    /**
+     * @return the emails waiting to be written, across all the shards
+     */
+    int getQueueLength() {
+
+        int length = 0;
+        for (final Shard shard : shards) {
+            length += shard.getQueueLength();
+        }
+        return length;
+    }
+
+    /**
+     * Picks the shard a new incoming email will be saved to. It has to be
+     * picked up front, so the spool is on the same disk as the shard and can
+     * be renamed into place.
+     *
+     * @return an empty spool for a new incoming email
+     */
+    Spool newSpool() {
+
+        return shards[(next.getAndIncrement() & Integer.MAX_VALUE) % shards.length].newSpool();
+    }
+
+    /**
+     * Opens the mailbox for a POP3 session. It shows the store as it is now,
+     * and doesn't change as other sessions save or remove emails. A user
+     * that has never been sent an email gets every email if
+     * {@link Main#POP_CATCHALL} is on, or none if it isn't.
+     *
+     * @param user the login name, or null if the client didn't give one
+     * @return a new mailbox
+     */
+    Mailbox open(final String user) {
+
+        final Snapshot own = user == null ? null : recipients.snapshot(Recipients.address(user));
+        if (own != null) {
+            return new Mailbox(own);
+        }
+        return new Mailbox(POP_CATCHALL ? snapshot() : EMPTY);
+    }
+
+    /**
+     * Removes the messages a session marked deleted.
+     *
+     * @param mailbox
+     */
+    void quit(final Mailbox mailbox) {
+
+        remove(mailbox.getDeleted());
+    }
+
+    /**
+     * Deletes the oldest emails that are beyond the retention limits, up to
+     * a batch at a time.
+     *
+     * @param now
+     * @return the number of emails deleted
+     */
+    int reap(final long now) {
+
+        final Snapshot snapshot = snapshot();
+        final int size = snapshot.size();
+        long octets = snapshot.getTotalOctets();
+        final List<Message> doomed = new ArrayList<Message>();
+        for (int i = 0; i < size && doomed.size() < REAP_BATCH; i++) {
+            if ((RETENTION_COUNT == 0 || size - i <= RETENTION_COUNT)
+                && (RETENTION_BYTES == 0 || octets <= RETENTION_BYTES)
+                && (RETENTION_AGE == 0 || snapshot.getArrival(i) > now - RETENTION_AGE)) {
+                break;
+            }
+            doomed.add(snapshot.getMessage(i));
+            octets -= snapshot.getOctets(i);
+        }
+        return remove(doomed).size();
+    }
+
+    /**
+     * Takes emails out of the index and off the disk. Any that another
+     * session or the reaper has already removed are skipped.
+     *
+     * @param messages
+     * @return the emails removed
+     */
+    List<Message> remove(final Collection<Message> messages) {
+
+        final List<Message> removed = new ArrayList<Message>();
+        for (final Shard shard : shards) {
+            removed.addAll(shard.getIndex().remove(messages));
+        }
+        recipients.remove(removed);
+        Metrics.PURGES.add(removed.size());
+        if (search != null) {
+            search.remove(removed);
+        }
+        for (final Message message : removed) {
+            if (cache != null) {
+                cache.remove(message);
+            }
+            final PurgeEvent event = new PurgeEvent();
+            event.begin();
+            message.purge();
+            event.end();
+            if (event.shouldCommit()) {
+                event.bytes = message.getLength();
+                event.commit();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Commits a spooled email to the store. The spool belongs to the store
+     * afterwards. Depending on {@link Main#DURABILITY}, this waits until the
+     * email is written, or forced out to the disk, or not at all.
+     *
+     * @param spool
+     * @throws IOException
+     */
+    void save(final Spool spool) throws IOException {
+
+        for (final Shard shard : shards) {
+            if (shard.owns(spool)) {
+                shard.save(spool);
+                return;
             }
         }
-        return total;
+        throw new IOException("Spool is not from this store");
     }
 
-    void quit() {
+    /**
+     * Commits a spooled email to the store without waiting for it to be
+     * written. The spool belongs to the store afterwards.
+     *
+     * @param spool
+     * @param callback called once {@link #save(Spool)} would have returned,
+     *            from another thread
+     */
+    void save(final Spool spool, final Callback callback) {
 
-        for (final Message message : messages) {
-            if (message.isDeleted()) {
-                message.purge();
+        for (final Shard shard : shards) {
+            if (shard.owns(spool)) {
+                shard.save(spool, callback);
+                return;
             }
         }
+        callback.saved(new IOException("Spool is not from this store"));
+    }
+
+    /**
+     * @param query words that must all be in an email
+     * @return the emails found, or null if there is no search index
+     * @see SearchIndex#search(String)
+     */
+    Snapshot search(final String query) {
+
+        return search == null ? null : search.search(query);
     }
 
-    void reset() {
+    /**
+     * Writes every email already handed over, in every shard, and refuses
+     * any more, so an email a client has been told is saved isn't lost when
+     * the server is stopped.
+     */
+    void shutdown() {
 
-        for (final Message message : messages) {
-            message.setDeleted(false);
+        for (final Shard shard : shards) {
+            shard.shutdown();
         }
     }
 
-    void save(final String email) throws IOException {
+    /**
+     * @param recipient the recipient whose emails to include, or null for
+     *            every email
+     * @return the store as it is now, oldest first
+     */
+    Snapshot snapshot(final String recipient) {
 
-        String filename = Integer.toString(email.hashCode());
-        File file = new File(directory, filename);
-        int idx = 0;
-        while (file.exists()) {
-            filename = filename.split("_")[0] + "_" + idx;
-            file = new File(filename);
-            idx++;
+        if (recipient == null) {
+            return snapshot();
         }
-        final Writer writer = new FileWriter(file);
-        writer.write(email);
-        writer.flush();
-        writer.close();
-        messages.add(new Message(file));
+        final Snapshot own = recipients.snapshot(Recipients.address(recipient));
+        return own == null ? EMPTY : own;
+    }
+
+    /**
+     * Loads what is already on disk, then starts the housekeeping threads.
+     */
+    private void recover() {
+
+        try {
+            final long start = System.currentTimeMillis();
+            if (search != null) {
+                // Emails saved while the rest loads queue up behind the index
+                search.load();
+                search.start();
+            }
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final Shard shard : shards) {
+                tasks.add(new Callable<Void>() {
+
+                    public Void call() throws IOException {
+
+                        shard.load();
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks);
+            // Loaded emails were indexed in whatever order the disk gave them
+            recipients.sort();
+            if (search != null) {
+                search.attach(snapshot());
+            }
+            info("Loaded " + snapshot().size() + " emails in " + (System.currentTimeMillis() - start) + "ms.");
+            new Checkpointer(ALL_THREADS, this).start();
+            if (RETENTION_AGE > 0 || RETENTION_BYTES > 0 || RETENTION_COUNT > 0) {
+                new Reaper(ALL_THREADS, this).start();
+            }
+        } catch (final IOException e) {
+            recoveryError = e;
+        } finally {
+            recovered.countDown();
+        }
+    }
+
+    /**
+     * Doesn't lock anything. The same view is handed out until one of the
+     * shards changes, so whatever has been merged of it is shared; if two
+     * threads make a new one at once, either will do.
+     *
+     * @return every shard's index as one
+     * @see MergedSnapshot
+     */
+    private Snapshot snapshot() {
+
+        if (shards.length == 1) {
+            return shards[0].getIndex().snapshot();
+        }
+        final Snapshot[] parts = new Snapshot[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            parts[i] = shards[i].getIndex().snapshot();
+        }
+        MergedSnapshot current = merged;
+        if (current == null || !current.isOf(parts)) {
+            current = new MergedSnapshot(parts, shards);
+            merged = current;
+        }
+        return current;
+    }
+
+    /**
+     * Runs tasks on {@link Main#RECOVERY_THREADS} threads.
+     *
+     * @param tasks
+     * @return the results, in the same order as the tasks
+     * @throws IOException if any task failed
+     */
+    static <T> List<T> runAll(final List<Callable<T>> tasks) throws IOException {
+
+        final ExecutorService pool = Executors.newFixedThreadPool(RECOVERY_THREADS);
+        try {
+            final List<T> results = new ArrayList<T>();
+            for (final Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+     * Told when an email handed to {@link Store#save(Spool, Callback)} has
+     * been saved.
+     */
+    interface Callback {
+
+        /**
+         * @param error why the email could not be saved, or null if it was
+         */
+        void saved(IOException error);
     }
 }
@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import static com.ashtonit.bumsink.Main.COMMIT_BATCH;
+import static com.ashtonit.bumsink.Main.DURABILITY;
+import static com.ashtonit.bumsink.Main.DURABILITY_FSYNC;
+import static com.ashtonit.bumsink.Main.DURABILITY_NONE;
+import static com.ashtonit.bumsink.Main.RUNNING;
+import static com.ashtonit.bumsink.Main.SO_TIMEOUT;
+import static com.ashtonit.bumsink.Main.WRITER_BACKLOG;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ashtonit.bumsink.Events.SaveEvent;
+import com.ashtonit.bumsink.Events.SyncEvent;
+
+
+/**
+ * The one thread that writes emails to the {@link Storage}. Sessions queue
+ * their spools and whatever has queued up while the last batch was being
+ * written goes out as the next batch, up to {@link Main#COMMIT_BATCH}
+ * emails, followed by a single {@link Storage#sync()} if
+ * {@link Main#DURABILITY} is "fsync". Under load, many sessions share the
+ * cost of one fsync.
+ * <p>
+ * With "fsync" or "flush", {@link #write(Spool)} returns once the batch is
+ * done, so the client hears 250 only after that. With "none" it returns as
+ * soon as the spool is queued, unless {@link Main#WRITER_BACKLOG} emails are
+ * already queued that way, in which case it waits as it would with "flush".
+ * That keeps a burst from filling the heap with emails nobody is waiting
+ * for. {@link #write(Spool, Store.Callback)} never waits, and calls back
+ * once it would have returned instead.
+ * <p>
+ * {@link #shutdown()} writes whatever is queued, and refuses anything more.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class StoreWriter extends Thread {
+
+    private final MessageCache cache;
+    private boolean closed = false;
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private final Commit end = new Commit(null, null, false);
+    private final Index index;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<Commit>();
+    private final Semaphore room = new Semaphore(WRITER_BACKLOG);
+    private final Storage storage;
+
+    /**
+     * @param threadGroup
+     * @param storage
+     * @param index
+     * @param cache where to put emails as they are saved, or null
+     */
+    StoreWriter(final ThreadGroup threadGroup, final Storage storage, final Index index, final MessageCache cache) {
+
+        super(threadGroup, "StoreWriter");
+        this.storage = storage;
+        this.index = index;
+        this.cache = cache;
+        setDaemon(true);
+    }
+
+    /**
+     * @return the emails waiting to be written
+     */
+    int getQueueLength() {
+
+        return queue.size();
+    }
+
+    /**
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+
+        final List<Commit> batch = new ArrayList<Commit>();
+        while (RUNNING) {
+            try {
+                final Commit first = queue.poll(SO_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, COMMIT_BATCH - 1);
+                // Nothing is queued after the end
+                final boolean last = batch.remove(end);
+                if (!batch.isEmpty()) {
+                    commit(batch);
+                }
+                if (last) {
+                    drained.countDown();
+                    return;
+                }
+            } catch (final InterruptedException e) {
+                // Don't care
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes whatever is queued, then stops. Anything handed over from now
+     * on is refused.
+     */
+    void shutdown() {
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(end);
+        } finally {
+            lock.unlock();
+        }
+        while (isAlive() && drained.getCount() > 0) {
+            try {
+                drained.await();
+            } catch (final InterruptedException e) {
+                // Don't care
+            }
+        }
+    }
+
+    /**
+     * Hands a spooled email over to be written. The spool belongs to the
+     * writer afterwards.
+     *
+     * @param spool
+     * @throws IOException if the email could not be written
+     */
+    void write(final Spool spool) throws IOException {
+
+        final Commit commit = new Commit(spool, null, early());
+        queue(commit);
+        if (!commit.early) {
+            commit.await();
+        }
+    }
+
+    /**
+     * Hands a spooled email over to be written, without waiting for it. The
+     * spool belongs to the writer afterwards.
+     *
+     * @param spool
+     * @param callback called on this thread once the email is written, or
+     *            straight away if the durability is "none"
+     */
+    void write(final Spool spool, final Store.Callback callback) {
+
+        final boolean early = early();
+        try {
+            queue(new Commit(spool, early ? null : callback, early));
+        } catch (final IOException e) {
+            callback.saved(e);
+            return;
+        }
+        if (early) {
+            callback.saved(null);
+        }
+    }
+
+    private void commit(final List<Commit> batch) {
+
+        for (final Commit commit : batch) {
+            try {
+                final Spool spool = commit.spool;
+                final long length = spool.getLength();
+                final byte[] data = cache != null && cache.accepts(spool.getLength()) ? spool.toByteArray() : null;
+                final SaveEvent event = new SaveEvent();
+                event.begin();
+                final Message message = storage.save(spool, index);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.bytes = length;
+                    event.commit();
+                }
+                if (data != null) {
+                    cache.put(message, data);
+                }
+                Metrics.MESSAGES_STORED.increment();
+                Metrics.BYTES_STORED.add(length);
+            } catch (final IOException e) {
+                commit.error = e;
+                commit.spool.discard();
+            } catch (final RuntimeException e) {
+                commit.error = new IOException(e);
+                commit.spool.discard();
+            }
+        }
+        if (DURABILITY_FSYNC.equals(DURABILITY)) {
+            final SyncEvent event = new SyncEvent();
+            event.begin();
+            try {
+                storage.sync();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.emails = batch.size();
+                    event.commit();
+                }
+            } catch (final IOException e) {
+                for (final Commit commit : batch) {
+                    if (commit.error == null) {
+                        commit.error = e;
+                    }
+                }
+            }
+        }
+        for (final Commit commit : batch) {
+            if (commit.early) {
+                // Nobody is waiting to hear about it
+                if (commit.error != null) {
+                    commit.error.printStackTrace();
+                }
+                room.release();
+            }
+            commit.done();
+        }
+    }
+
+    /**
+     * @return true if the email can be acknowledged before it is written
+     */
+    private boolean early() {
+
+        return DURABILITY_NONE.equals(DURABILITY) && room.tryAcquire();
+    }
+
+    /**
+     * @throws IOException if the writer has been shut down
+     */
+    private void queue(final Commit commit) throws IOException {
+
+        lock.lock();
+        try {
+            if (!closed) {
+                queue.add(commit);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (commit.early) {
+            room.release();
+        }
+        commit.spool.discard();
+        throw new IOException("The store is shutting down");
+    }
+
+    /**
+     * An email waiting to be written. Waits with a latch rather than
+     * Object.wait(), which would pin a virtual thread to its carrier.
+     */
+    private static class Commit {
+
+        private final Store.Callback callback;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final boolean early;
+        private IOException error;
+        private final Spool spool;
+
+        /**
+         * @param spool
+         * @param callback
+         * @param early true if the email is acknowledged before it is
+         *            written, and nobody waits for it
+         */
+        private Commit(final Spool spool, final Store.Callback callback, final boolean early) {
+
+            this.spool = spool;
+            this.callback = callback;
+            this.early = early;
+        }
+
+        private void await() throws IOException {
+
+            while (done.getCount() > 0) {
+                try {
+                    done.await();
+                } catch (final InterruptedException e) {
+                    // Don't care
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void done() {
+
+            done.countDown();
+            if (callback != null) {
+                try {
+                    callback.saved(error);
+                } catch (final RuntimeException e) {
+                    // Mustn't stop the writer
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2026 Bruce Ashton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.ashtonit.bumsink;
+
+import java.util.Arrays;
+
+
+/**
+ * Maps the command at the start of a {@link Line} to a number a session can
+ * switch on. Verbs are matched as prefixes, ignoring case, and are bucketed
+ * by their first letter so a lookup only compares against the few verbs
+ * that could possibly match. Tables are filled in from static initialisers
+ * and never change afterwards.
+ * <p>
+ * Each verb also has a {@link Histogram} of how long it takes to handle,
+ * published with {@link Metrics}.
+ *
+ * @author Bruce Ashton
+ * @date 2026-10-18
+ */
+class VerbTable {
+
+    static final int NONE = -1;
+
+    private final int[][] codes = new int[26][0];
+    private String[] commands = new String[0];
+    private int next = 0;
+    private final String protocol;
+    private Histogram[] times = new Histogram[0];
+    private final byte[][][] verbs = new byte[26][0][];
+
+    /**
+     * @param protocol the name the histograms are published under
+     */
+    VerbTable(final String protocol) {
+
+        this.protocol = protocol;
+    }
+
+    /**
+     * Adds a verb to the table.
+     *
+     * @param verb ASCII, starting with a letter
+     * @return the code {@link #get(Line)} returns for the verb
+     */
+    int add(final String verb) {
+
+        final int code = next++;
+        final byte[] bytes = verb.toUpperCase().getBytes();
+        final int bucket = bytes[0] - 'A';
+        final int size = verbs[bucket].length;
+
+        final byte[][] newVerbs = new byte[size + 1][];
+        System.arraycopy(verbs[bucket], 0, newVerbs, 0, size);
+        newVerbs[size] = bytes;
+        verbs[bucket] = newVerbs;
+
+        final int[] newCodes = new int[size + 1];
+        System.arraycopy(codes[bucket], 0, newCodes, 0, size);
+        newCodes[size] = code;
+        codes[bucket] = newCodes;
+
+        // The command is the first word, without the colon of "MAIL FROM:"
+        final String command = verb.toUpperCase().split("[ :]")[0];
+        commands = Arrays.copyOf(commands, code + 1);
+        commands[code] = command;
+        times = Arrays.copyOf(times, code + 1);
+        times[code] = new Histogram("Time to handle " + command + ", in microseconds");
+        Metrics.register("type=Latency,protocol=" + protocol + ",command=" + command, times[code]);
+        return code;
+    }
+
+    /**
+     * @param line
+     * @return the code of the verb the line starts with, or {@link #NONE}
+     */
+    int get(final Line line) {
+
+        if (line.length() == 0) {
+            return NONE;
+        }
+        final int bucket = Line.upper(line.byteAt(0)) - 'A';
+        if (bucket < 0 || bucket >= verbs.length) {
+            return NONE;
+        }
+        final byte[][] candidates = verbs[bucket];
+        for (int i = 0; i < candidates.length; i++) {
+            if (line.startsWith(candidates[i])) {
+                return codes[bucket][i];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param code
+     * @return the command for a code, or null for {@link #NONE}
+     */
+    String getCommand(final int code) {
+
+        return code == NONE ? null : commands[code];
+    }
+
+    /**
+     * Records how long a verb took to handle.
+     *
+     * @param code as returned by {@link #get(Line)}; {@link #NONE} is not
+     *            recorded
+     * @param nanos
+     */
+    void time(final int code, final long nanos) {
+
+        if (code != NONE) {
+            times[code].record(nanos);
+        }
+    }
+}